@@ -17,20 +17,24 @@ import static com.instana.opentracing.ByteBufferContext.ENTRY;
 
 public class BaggageItemUtil {
 
-  static TextMapExtractAdapter filterItems(TextMapExtract textMapExtract) {
+  static TextMapExtractAdapter filterItems(TextMapExtract textMapExtract, PropagationLimits propagationLimits,
+      TracerTelemetry telemetry) {
     Map<String, String> baggageItems = new HashMap<String, String>();
     for (Map.Entry<String, String> entryItem : textMapExtract) {
       if (entryItem.getKey() == null) {
         continue;
       }
       if (canAddItem(entryItem.getKey())) {
-        baggageItems.put(entryItem.getKey(), entryItem.getValue());
+        propagationLimits.put(baggageItems, entryItem.getKey(), entryItem.getValue());
+      } else {
+        telemetry.onFilteredBaggageItem();
       }
     }
     return new TextMapExtractAdapter(baggageItems);
   }
 
-  static Set<Map.Entry<String, String>> filterItems(ByteBuffer byteBuffer) {
+  static Set<Map.Entry<String, String>> filterItems(ByteBuffer byteBuffer, PropagationLimits propagationLimits,
+      TracerTelemetry telemetry) {
     Map<String, String> baggageItems = new HashMap<String, String>();
     while (byteBuffer.get() == ENTRY) {
       byte[] key = new byte[byteBuffer.getInt()], value = new byte[byteBuffer.getInt()];
@@ -38,18 +42,33 @@ public class BaggageItemUtil {
       byteBuffer.get(value);
       final String stringKey = new String(key, CHARSET);
       if (canAddItem(stringKey)) {
-        baggageItems.put(stringKey, new String(value, CHARSET));
+        propagationLimits.put(baggageItems, stringKey, new String(value, CHARSET));
+      } else {
+        telemetry.onFilteredBaggageItem();
       }
     }
     return baggageItems.entrySet();
   }
 
+  static Map<String, String> filterItems(HttpHeaderBlock httpHeaderBlock,
+      final PropagationLimits propagationLimits, final TracerTelemetry telemetry) {
+    final Map<String, String> baggageItems = new HashMap<String, String>();
+    httpHeaderBlock.scan(new HttpHeaderScanner.Visitor() {
+      @Override
+      public void onHeader(int header, ByteBuffer buffer, int from, int to) {
+        propagationLimits.put(baggageItems, HttpHeaderScanner.HEADERS[header],
+            HttpHeaderScanner.decode(buffer, from, to));
+      }
+
+      @Override
+      public void onIgnoredHeader() {
+        telemetry.onFilteredBaggageItem();
+      }
+    });
+    return baggageItems;
+  }
+
   private static boolean canAddItem(String key) {
-    String lowerCaseKey = key.toLowerCase();
-    return "x-instana-t".equals(lowerCaseKey)  //
-        || "x-instana-s".equals(lowerCaseKey)  //
-        || "x-instana-l".equals(lowerCaseKey)  //
-        || "traceparent".equals(lowerCaseKey)  //
-        || "tracestate".equals(lowerCaseKey);
+    return PropagationLimits.isPropagationHeader(key);
   }
 }
@@ -19,8 +19,8 @@ class ByteBufferContext implements SpanContext {
 
   private final Set<Map.Entry<String, String>> baggageItems;
 
-  ByteBufferContext(BinaryExtract carrier) {
-    this.baggageItems = BaggageItemUtil.filterItems(carrier.extractionBuffer());
+  ByteBufferContext(BinaryExtract carrier, PropagationLimits propagationLimits, TracerTelemetry telemetry) {
+    this.baggageItems = BaggageItemUtil.filterItems(carrier.extractionBuffer(), propagationLimits, telemetry);
   }
 
   @Override
@@ -0,0 +1,46 @@
+/*
+ * (c) Copyright IBM Corp. 2022
+ * (c) Copyright Instana Inc.
+ */
+package com.instana.opentracing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The count and total duration of child spans per operation name that were not recorded as their duration was below
+ * the collapse threshold. The threshold defaults to the value of the
+ * {@code instana.opentracing.spans.collapse.threshold.micros} system property where {@code 0} disables collapsing. The
+ * aggregates are set on the parent span as the tags {@code collapsed.<operation>.count} and
+ * {@code collapsed.<operation>.micros} when the parent span finishes.
+ */
+class CollapsedSpans {
+
+  static final long DEFAULT_THRESHOLD_MICROS = Math.max(0L,
+      Long.getLong("instana.opentracing.spans.collapse.threshold.micros", 0L));
+
+  private final Map<String, long[]> aggregates = new LinkedHashMap<String, long[]>();
+
+  void add(String operationName, long count, long durationMicros) {
+    long[] aggregate = aggregates.get(operationName);
+    if (aggregate == null) {
+      aggregate = new long[2];
+      aggregates.put(operationName, aggregate);
+    }
+    aggregate[0] += count;
+    aggregate[1] += durationMicros;
+  }
+
+  void addAll(CollapsedSpans collapsedSpans) {
+    for (Map.Entry<String, long[]> entry : collapsedSpans.aggregates.entrySet()) {
+      add(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+    }
+  }
+
+  void applyTo(Map<String, String> tags) {
+    for (Map.Entry<String, long[]> entry : aggregates.entrySet()) {
+      tags.put("collapsed." + entry.getKey() + ".count", Long.toString(entry.getValue()[0]));
+      tags.put("collapsed." + entry.getKey() + ".micros", Long.toString(entry.getValue()[1]));
+    }
+  }
+}
@@ -0,0 +1,401 @@
+/*
+ * (c) Copyright IBM Corp. 2022
+ * (c) Copyright Instana Inc.
+ */
+package com.instana.opentracing;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A recorder that copies finished spans into columns of primitive arrays rather than retaining the span objects.
+ * Operation names and tag keys are interned into integer ids, tag values are retained by reference. Columns are
+ * allocated in chunks of a fixed number of spans that are recycled once they are cleared or evicted such that the
+ * recorder does not create garbage per recorded span after warming up. If the maximum number of spans is exceeded,
+ * the oldest chunk is evicted. Recorded spans are read by a {@link Cursor}.
+ */
+public class ColumnarSpanRecorder implements SpanRecorder {
+
+  private static final int MAX_INTERNED = 4096, NOT_INTERNED = -1;
+
+  private final int chunkSize, maxChunks;
+
+  private final List<Chunk> chunks = new ArrayList<Chunk>();
+
+  private final ArrayDeque<Chunk> pool = new ArrayDeque<Chunk>();
+
+  private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+  private final List<String> names = new ArrayList<String>();
+
+  private long evicted;
+
+  /**
+   * Creates a recorder for up to 65536 spans in chunks of 1024 spans.
+   */
+  public ColumnarSpanRecorder() {
+    this(1024, 64);
+  }
+
+  /**
+   * Creates a recorder.
+   *
+   * @param chunkSize
+   *          The number of spans per chunk.
+   * @param maxChunks
+   *          The maximum number of chunks before the oldest chunk is evicted.
+   */
+  public ColumnarSpanRecorder(int chunkSize, int maxChunks) {
+    if (chunkSize < 1 || maxChunks < 1) {
+      throw new IllegalArgumentException("Chunk size and number of chunks must be positive");
+    }
+    this.chunkSize = chunkSize;
+    this.maxChunks = maxChunks;
+  }
+
+  @Override
+  public void record(InstanaSpan span) {
+    span.resolveDeferredTags();
+    append(span);
+  }
+
+  private synchronized void append(InstanaSpan span) {
+    Chunk chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+    if (chunk == null || chunk.size == chunkSize) {
+      chunk = acquire();
+    }
+    int index = chunk.size;
+    chunk.traceIdHigh[index] = span.traceIdHigh();
+    chunk.traceIdLow[index] = span.traceIdLow();
+    chunk.spanId[index] = span.spanId();
+    chunk.parentSpanId[index] = span.parentSpanId();
+    chunk.startMicros[index] = span.startMicros();
+    chunk.durationMicros[index] = span.durationMicros();
+    chunk.operation[index] = intern(span.operationName());
+    chunk.operationNames[index] = chunk.operation[index] == NOT_INTERNED ? span.operationName() : null;
+    chunk.tagsFrom[index] = chunk.tags;
+    for (Map.Entry<String, String> tag : span.tags().entrySet()) {
+      chunk.addTag(intern(tag.getKey()), tag.getKey(), tag.getValue());
+    }
+    chunk.tagsTo[index] = chunk.tags;
+    chunk.size++;
+  }
+
+  /**
+   * @return The number of spans that are currently recorded.
+   */
+  public synchronized int size() {
+    int size = 0;
+    for (Chunk chunk : chunks) {
+      size += chunk.size;
+    }
+    return size;
+  }
+
+  /**
+   * @return The number of spans that were evicted as the maximum number of spans was exceeded.
+   */
+  public synchronized long evicted() {
+    return evicted;
+  }
+
+  /**
+   * Removes all recorded spans and recycles their chunks. Cursors that were created before are invalidated.
+   */
+  public synchronized void clear() {
+    for (Chunk chunk : chunks) {
+      chunk.reset();
+      pool.add(chunk);
+    }
+    chunks.clear();
+  }
+
+  /**
+   * @return A cursor over all spans that are recorded at the time of invocation, in the order of their completion.
+   */
+  public Cursor cursor() {
+    return cursor(null);
+  }
+
+  /**
+   * @param operationName
+   *          The operation name of the spans to read or {@code null} for all spans.
+   * @return A cursor over all spans of the given operation name that are recorded at the time of invocation, in the
+   *         order of their completion.
+   */
+  public synchronized Cursor cursor(String operationName) {
+    int operation = NOT_INTERNED;
+    if (operationName != null) {
+      Integer id = ids.get(operationName);
+      if (id == null && names.size() < MAX_INTERNED) {
+        return new Cursor(new Chunk[0], new int[0], new int[0], new int[0][], new String[0][], new String[0][],
+            new String[0], NOT_INTERNED, null);
+      } else if (id != null) {
+        operation = id;
+      }
+    }
+    Chunk[] chunks = this.chunks.toArray(new Chunk[0]);
+    int[] sizes = new int[chunks.length], generations = new int[chunks.length];
+    int[][] tagKeys = new int[chunks.length][];
+    String[][] tagNames = new String[chunks.length][], tagValues = new String[chunks.length][];
+    for (int index = 0; index < chunks.length; index++) { // tag columns are replaced when they grow
+      sizes[index] = chunks[index].size;
+      generations[index] = chunks[index].generation;
+      tagKeys[index] = chunks[index].tagKeys;
+      tagNames[index] = chunks[index].tagNames;
+      tagValues[index] = chunks[index].tagValues;
+    }
+    return new Cursor(chunks, sizes, generations, tagKeys, tagNames, tagValues, names.toArray(new String[0]),
+        operation, operation == NOT_INTERNED ? operationName : null);
+  }
+
+  private Chunk acquire() {
+    Chunk chunk;
+    if (chunks.size() == maxChunks) {
+      chunk = chunks.remove(0);
+      evicted += chunk.size;
+      chunk.reset();
+    } else if (pool.isEmpty()) {
+      chunk = new Chunk(chunkSize);
+    } else {
+      chunk = pool.remove();
+    }
+    chunks.add(chunk);
+    return chunk;
+  }
+
+  private int intern(String name) {
+    if (name == null) {
+      return NOT_INTERNED;
+    }
+    Integer id = ids.get(name);
+    if (id != null) {
+      return id;
+    } else if (names.size() == MAX_INTERNED) {
+      return NOT_INTERNED; // high-cardinality names, such as those of log tags, are retained by reference
+    }
+    id = names.size();
+    names.add(name);
+    ids.put(name, id);
+    return id;
+  }
+
+  private static class Chunk {
+
+    final long[] traceIdHigh, traceIdLow, spanId, parentSpanId, startMicros, durationMicros;
+
+    final int[] operation, tagsFrom, tagsTo;
+
+    final String[] operationNames;
+
+    int[] tagKeys;
+
+    String[] tagNames, tagValues;
+
+    int size, tags;
+
+    volatile int generation; // incremented whenever the chunk is recycled
+
+    Chunk(int size) {
+      traceIdHigh = new long[size];
+      traceIdLow = new long[size];
+      spanId = new long[size];
+      parentSpanId = new long[size];
+      startMicros = new long[size];
+      durationMicros = new long[size];
+      operation = new int[size];
+      operationNames = new String[size];
+      tagsFrom = new int[size];
+      tagsTo = new int[size];
+      tagKeys = new int[size * 4];
+      tagNames = new String[size * 4];
+      tagValues = new String[size * 4];
+    }
+
+    void addTag(int key, String name, String value) {
+      if (tags == tagKeys.length) {
+        tagKeys = Arrays.copyOf(tagKeys, tags * 2);
+        tagNames = Arrays.copyOf(tagNames, tags * 2);
+        tagValues = Arrays.copyOf(tagValues, tags * 2);
+      }
+      tagKeys[tags] = key;
+      tagNames[tags] = key == NOT_INTERNED ? name : null;
+      tagValues[tags++] = value;
+    }
+
+    void reset() {
+      generation++;
+      Arrays.fill(operationNames, 0, size, null);
+      Arrays.fill(tagNames, 0, tags, null);
+      Arrays.fill(tagValues, 0, tags, null);
+      size = 0;
+      tags = 0;
+    }
+  }
+
+  /**
+   * A cursor over recorded spans that exposes the columns of the current span. A cursor captures the columns and
+   * interned names at its creation such that it can be used concurrently to recording. A cursor is not thread-safe.
+   * Once the recorder is cleared or spans of the cursor are evicted, their chunks are recycled and reading them throws
+   * a {@link ConcurrentModificationException}.
+   */
+  public class Cursor {
+
+    private final Chunk[] chunks;
+
+    private final int[] sizes, generations;
+
+    private final int[][] tagKeys;
+
+    private final String[][] tagNames, tagValues;
+
+    private final String[] names;
+
+    private final int operation;
+
+    private final String operationName;
+
+    private int chunkIndex, index = -1;
+
+    private Chunk chunk;
+
+    private Cursor(Chunk[] chunks, int[] sizes, int[] generations, int[][] tagKeys, String[][] tagNames,
+        String[][] tagValues, String[] names, int operation, String operationName) {
+      this.chunks = chunks;
+      this.sizes = sizes;
+      this.generations = generations;
+      this.tagKeys = tagKeys;
+      this.tagNames = tagNames;
+      this.tagValues = tagValues;
+      this.names = names;
+      this.operation = operation;
+      this.operationName = operationName;
+      chunk = chunks.length == 0 ? null : chunks[0];
+    }
+
+    /**
+     * Advances the cursor to the next span.
+     *
+     * @return {@code true} if the cursor points to a span.
+     */
+    public boolean next() {
+      while (chunk != null) {
+        while (++index < sizes[chunkIndex]) {
+          boolean matches = operationName == null
+              ? operation == NOT_INTERNED || chunk.operation[index] == operation
+              : operationName.equals(operationName());
+          checkGeneration();
+          if (matches) {
+            return true;
+          }
+        }
+        index = -1;
+        chunk = ++chunkIndex < chunks.length ? chunks[chunkIndex] : null;
+      }
+      return false;
+    }
+
+    public long traceIdHigh() {
+      long value = chunk.traceIdHigh[index];
+      checkGeneration();
+      return value;
+    }
+
+    public long traceIdLow() {
+      long value = chunk.traceIdLow[index];
+      checkGeneration();
+      return value;
+    }
+
+    public long spanId() {
+      long value = chunk.spanId[index];
+      checkGeneration();
+      return value;
+    }
+
+    public long parentSpanId() {
+      long value = chunk.parentSpanId[index];
+      checkGeneration();
+      return value;
+    }
+
+    public long startMicros() {
+      long value = chunk.startMicros[index];
+      checkGeneration();
+      return value;
+    }
+
+    public long durationMicros() {
+      long value = chunk.durationMicros[index];
+      checkGeneration();
+      return value;
+    }
+
+    public String operationName() {
+      int id = chunk.operation[index];
+      String operationName = chunk.operationNames[index];
+      checkGeneration();
+      return id == NOT_INTERNED ? operationName : names[id];
+    }
+
+    /**
+     * @return The number of tags of the current span, including the tags of its template.
+     */
+    public int tagCount() {
+      int tagCount = chunk.tagsTo[index] - chunk.tagsFrom[index];
+      checkGeneration();
+      return tagCount;
+    }
+
+    public String tagKey(int tag) {
+      int offset = tagOffset(tag), id = tagKeys[chunkIndex][offset];
+      String tagName = tagNames[chunkIndex][offset];
+      checkGeneration();
+      return id == NOT_INTERNED ? tagName : names[id];
+    }
+
+    public String tagValue(int tag) {
+      String tagValue = tagValues[chunkIndex][tagOffset(tag)];
+      checkGeneration();
+      return tagValue;
+    }
+
+    /**
+     * @param key
+     *          The tag key.
+     * @return The value of the last tag of the current span with the given key or {@code null} if no such tag exists.
+     */
+    public String tag(String key) {
+      for (int tag = tagCount() - 1; tag >= 0; tag--) {
+        if (key.equals(tagKey(tag))) {
+          return tagValue(tag);
+        }
+      }
+      return null;
+    }
+
+    private int tagOffset(int tag) {
+      int tagsFrom = chunk.tagsFrom[index], tagCount = chunk.tagsTo[index] - tagsFrom;
+      checkGeneration();
+      if (tag < 0 || tag >= tagCount) {
+        throw new IndexOutOfBoundsException("No tag at index " + tag + " of " + tagCount);
+      }
+      return tagsFrom + tag;
+    }
+
+    /**
+     * Validates that the current chunk was not recycled after its values were read, before they are used to resolve
+     * names or offsets.
+     */
+    private void checkGeneration() {
+      if (chunk.generation != generations[chunkIndex]) {
+        throw new ConcurrentModificationException("Recorded spans were evicted or cleared");
+      }
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * (c) Copyright IBM Corp. 2022
+ * (c) Copyright Instana Inc.
+ */
+package com.instana.opentracing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.opentracing.Span;
+
+/**
+ * Tags of a span whose values are computed only when the span is reported. Every supplier is assigned a time budget
+ * that defaults to the value of the {@code instana.opentracing.tags.deferred.budget.micros} system property. A supplier
+ * cannot be interrupted, but once a supplier exceeds its budget, all remaining suppliers of the span are skipped.
+ */
+class DeferredTags {
+
+  static final long DEFAULT_BUDGET_NANOS = TimeUnit.MICROSECONDS.toNanos(
+      Math.max(0L, Long.getLong("instana.opentracing.tags.deferred.budget.micros", 1000L)));
+
+  private final List<String> keys = new ArrayList<String>();
+
+  private final List<TagSupplier<?>> suppliers = new ArrayList<TagSupplier<?>>();
+
+  private final List<Long> budgets = new ArrayList<Long>();
+
+  void add(String key, TagSupplier<?> supplier, long budgetNanos) {
+    keys.add(key);
+    suppliers.add(supplier);
+    budgets.add(budgetNanos);
+  }
+
+  void addAll(DeferredTags deferredTags) {
+    keys.addAll(deferredTags.keys);
+    suppliers.addAll(deferredTags.suppliers);
+    budgets.addAll(deferredTags.budgets);
+  }
+
+  /**
+   * Evaluates the suppliers in the order of their registration and sets their values on the given span until a
+   * supplier exceeds its budget.
+   */
+  void resolve(Span span) {
+    int size = keys.size();
+    for (int index = 0; index < size; index++) {
+      long started = System.nanoTime();
+      Object value;
+      try {
+        value = suppliers.get(index).get();
+      } catch (RuntimeException ignored) {
+        value = null;
+      }
+      if (value != null) {
+        span.setTag(keys.get(index), value.toString());
+      }
+      if (System.nanoTime() - started > budgets.get(index)) {
+        return;
+      }
+    }
+  }
+}
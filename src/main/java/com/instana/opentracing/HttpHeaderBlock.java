@@ -0,0 +1,64 @@
+/*
+ * (c) Copyright IBM Corp. 2022
+ * (c) Copyright Instana Inc.
+ */
+package com.instana.opentracing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A carrier for {@link InstanaFormat#HTTP_HEADER_BLOCK} that wraps a raw HTTP/1.1 header block, optionally preceded
+ * by a request or status line. The header block is read without being copied and without changing the position or
+ * limit of a wrapped buffer. Only the Instana and W3C trace context headers are decoded upon extraction.
+ */
+public class HttpHeaderBlock {
+
+  private final ByteBuffer buffer;
+
+  private final int from, to;
+
+  /**
+   * Creates a carrier for the remaining bytes of the supplied buffer.
+   *
+   * @param buffer
+   *          The buffer containing the header block between its position and limit.
+   */
+  public HttpHeaderBlock(ByteBuffer buffer) {
+    this.buffer = buffer;
+    this.from = buffer.position();
+    this.to = buffer.limit();
+  }
+
+  /**
+   * Creates a carrier for the supplied bytes.
+   *
+   * @param bytes
+   *          The bytes of the header block.
+   */
+  public HttpHeaderBlock(byte[] bytes) {
+    this(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Creates a carrier for a range of the supplied bytes.
+   *
+   * @param bytes
+   *          The bytes containing the header block.
+   * @param offset
+   *          The index of the first byte of the header block.
+   * @param length
+   *          The length of the header block.
+   */
+  public HttpHeaderBlock(byte[] bytes, int offset, int length) {
+    if (offset < 0 || length < 0 || offset + length > bytes.length) {
+      throw new IndexOutOfBoundsException("Illegal range " + offset + "+" + length + " for " + bytes.length + " bytes");
+    }
+    this.buffer = ByteBuffer.wrap(bytes);
+    this.from = offset;
+    this.to = offset + length;
+  }
+
+  void scan(HttpHeaderScanner.Visitor visitor) {
+    HttpHeaderScanner.scan(buffer, from, to, visitor);
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * (c) Copyright IBM Corp. 2022
+ * (c) Copyright Instana Inc.
+ */
+package com.instana.opentracing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A single-pass scanner for raw HTTP/1.1 header blocks that locates the headers relevant for context propagation.
+ * Header names are matched case-insensitively on the byte level such that no header is decoded unless it is relevant.
+ */
+class HttpHeaderScanner {
+
+  static final int X_INSTANA_T = 0, X_INSTANA_S = 1, X_INSTANA_L = 2, TRACEPARENT = 3, TRACESTATE = 4;
+
+  static final String[] HEADERS = {"x-instana-t", "x-instana-s", "x-instana-l", "traceparent", "tracestate"};
+
+  private static final byte[][] NAMES = new byte[HEADERS.length][];
+
+  static {
+    for (int index = 0; index < HEADERS.length; index++) {
+      NAMES[index] = HEADERS[index].getBytes(ByteBufferContext.CHARSET);
+    }
+  }
+
+  private static final byte CR = '\r', LF = '\n', COLON = ':', SPACE = ' ', TAB = '\t';
+
+  interface Visitor {
+
+    void onHeader(int header, ByteBuffer buffer, int from, int to);
+
+    void onIgnoredHeader();
+  }
+
+  private HttpHeaderScanner() {
+  }
+
+  /**
+   * Scans the header block within the given range using absolute reads. A start line is skipped as its leading token
+   * cannot match a header name, and scanning ends at the first empty line. Header lines that do not match a relevant
+   * header are reported without being decoded.
+   */
+  static void scan(ByteBuffer buffer, int from, int to, Visitor visitor) {
+    int lineStart = from;
+    while (lineStart < to) {
+      int colon = -1, index = lineStart;
+      boolean token = true; // a header name cannot contain whitespace, unlike a start line
+      byte current = 0;
+      while (index < to && (current = buffer.get(index)) != LF) {
+        if (colon == -1) {
+          if (current == COLON) {
+            colon = index;
+          } else if (isWhitespace(current)) {
+            token = false;
+          }
+        }
+        index++;
+      }
+      int lineEnd = index > lineStart && buffer.get(index - 1) == CR ? index - 1 : index;
+      if (lineEnd == lineStart) {
+        return; // empty line terminates the header block
+      }
+      if (colon != -1 && token) {
+        int header = header(buffer, lineStart, colon);
+        if (header == -1) {
+          visitor.onIgnoredHeader();
+        } else {
+          int valueFrom = colon + 1, valueTo = lineEnd;
+          while (valueFrom < valueTo && isWhitespace(buffer.get(valueFrom))) {
+            valueFrom++;
+          }
+          while (valueTo > valueFrom && isWhitespace(buffer.get(valueTo - 1))) {
+            valueTo--;
+          }
+          visitor.onHeader(header, buffer, valueFrom, valueTo);
+        }
+      }
+      lineStart = index + 1;
+    }
+  }
+
+  static String decode(ByteBuffer buffer, int from, int to) {
+    byte[] value = new byte[to - from];
+    for (int index = from; index < to; index++) {
+      value[index - from] = buffer.get(index);
+    }
+    return new String(value, ByteBufferContext.CHARSET);
+  }
+
+  private static int header(ByteBuffer buffer, int from, int to) {
+    int length = to - from;
+    for (int header = 0; header < NAMES.length; header++) {
+      byte[] name = NAMES[header];
+      if (name.length != length) {
+        continue;
+      }
+      int index = 0;
+      while (index < length && toLowerCase(buffer.get(from + index)) == name[index]) {
+        index++;
+      }
+      if (index == length) {
+        return header;
+      }
+    }
+    return -1;
+  }
+
+  private static byte toLowerCase(byte value) {
+    return value >= 'A' && value <= 'Z' ? (byte) (value + ('a' - 'A')) : value;
+  }
+
+  private static boolean isWhitespace(byte value) {
+    return value == SPACE || value == TAB;
+  }
+}
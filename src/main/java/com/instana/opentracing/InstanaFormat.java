@@ -0,0 +1,32 @@
+/*
+ * (c) Copyright IBM Corp. 2022
+ * (c) Copyright Instana Inc.
+ */
+package com.instana.opentracing;
+
+import io.opentracing.propagation.Format;
+
+/**
+ * Propagation formats that are supported by the Instana tracer in addition to OpenTracing's built-in formats.
+ *
+ * @param <C> The type of the carrier.
+ */
+public final class InstanaFormat<C> implements Format<C> {
+
+  /**
+   * Extracts a span context from a raw HTTP/1.1 header block without materializing the headers into a map.
+   */
+  public static final Format<HttpHeaderBlock> HTTP_HEADER_BLOCK = new InstanaFormat<HttpHeaderBlock>(
+      "HTTP_HEADER_BLOCK");
+
+  private final String name;
+
+  private InstanaFormat(String name) {
+    this.name = name;
+  }
+
+  @Override
+  public String toString() {
+    return InstanaFormat.class.getSimpleName() + "." + name;
+  }
+}
@@ -4,8 +4,17 @@
  */
 package com.instana.opentracing;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import io.opentracing.Span;
 import io.opentracing.SpanContext;
@@ -15,19 +24,128 @@ public class InstanaSpan implements Span, SpanContext {
 
   private static final long NO_TIME = 0L;
 
+  private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+    @Override
+    protected Random initialValue() {
+      return new Random();
+    }
+  };
+
   @SuppressWarnings("unused")
   private final Object dispatcher;
 
   private final Map<String, String> baggageItems;
 
-  InstanaSpan(Object dispatcher, Iterable<Map.Entry<String, String>> baggageItems) {
+  private SpanTemplate template;
+
+  private SpanLinks links = SpanLinks.NONE;
+
+  private DeferredTags deferredTags;
+
+  private final PropagationLimits propagationLimits;
+
+  private SpanRecorder recorder;
+
+  private InstanaSpan collapseParent;
+
+  private long collapseThresholdMicros;
+
+  private CollapsedSpans collapsedSpans;
+
+  private InstanaSpan collapsedInto;
+
+  private boolean recordedChild;
+
+  private String operationName;
+
+  private long traceIdHigh, traceIdLow, spanId, parentSpanId, startMicros, startNanos, durationMicros;
+
+  private Map<String, String> tags;
+
+  private boolean localRoot, finished;
+
+  InstanaSpan(Object dispatcher, SpanContext parent, PropagationLimits propagationLimits) {
     this.dispatcher = dispatcher;
-    this.baggageItems = new HashMap<String, String>();
-    if (baggageItems != null) {
-      for (Map.Entry<String, String> baggageItem : baggageItems) {
-        this.baggageItems.put(baggageItem.getKey(), baggageItem.getValue());
+    this.propagationLimits = propagationLimits;
+    if (parent instanceof InstanaSpan && ((InstanaSpan) parent).propagationLimits == propagationLimits) {
+      this.baggageItems = new HashMap<String, String>(((InstanaSpan) parent).baggageItems); // already admitted
+    } else {
+      this.baggageItems = new HashMap<String, String>();
+      if (parent != null) {
+        propagationLimits.putAll(this.baggageItems, parent.baggageItems());
+      }
+    }
+  }
+
+  InstanaSpan withTemplate(SpanTemplate template) {
+    this.template = template;
+    if (template != null && recorder == null) { // only recorded spans share the template's tags by reference
+      for (Map.Entry<String, String> tag : template.tags().entrySet()) {
+        setTag(tag.getKey(), tag.getValue());
+      }
+    }
+    return this;
+  }
+
+  InstanaSpan withLinks(SpanLinks links) {
+    if (links != null) {
+      this.links = links;
+    }
+    return this;
+  }
+
+  InstanaSpan withDeferredTags(DeferredTags deferredTags) {
+    if (deferredTags != null) {
+      deferredTags().addAll(deferredTags);
+    }
+    return this;
+  }
+
+  /**
+   * Enables this span to capture its data for the supplied recorder. The span continues the trace of the parent if
+   * its ids are known and starts a new trace otherwise.
+   */
+  InstanaSpan withRecorder(SpanRecorder recorder, SpanContext parent) {
+    if (recorder == null) {
+      return this;
+    }
+    this.recorder = recorder;
+    tags = new LinkedHashMap<String, String>();
+    if (parent instanceof InstanaSpan && ((InstanaSpan) parent).recorder != null) {
+      InstanaSpan parentSpan = (InstanaSpan) parent;
+      traceIdHigh = parentSpan.traceIdHigh;
+      traceIdLow = parentSpan.traceIdLow;
+      parentSpanId = parentSpan.spanId;
+    } else if (parent != null) {
+      localRoot = true;
+      SpanLinks ids = new SpanLinks(1);
+      if (ids.add(parent)) {
+        traceIdHigh = ids.traceIdHigh(0);
+        traceIdLow = ids.traceIdLow(0);
+        parentSpanId = ids.spanId(0);
       }
     }
+    if (traceIdHigh == 0L && traceIdLow == 0L) {
+      localRoot = true;
+      traceIdLow = randomId();
+    }
+    spanId = randomId();
+    startMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    startNanos = System.nanoTime();
+    return this;
+  }
+
+  /**
+   * Enables this span to be collapsed into the supplied parent if it is a recorded span of this process and if this
+   * span finishes within the threshold.
+   */
+  InstanaSpan withCollapseThreshold(long thresholdMicros, SpanContext parent) {
+    if (recorder != null && thresholdMicros > 0L && parent instanceof InstanaSpan
+        && ((InstanaSpan) parent).recorder != null) {
+      collapseParent = (InstanaSpan) parent;
+      collapseThresholdMicros = thresholdMicros;
+    }
+    return this;
   }
 
   @SuppressWarnings("unused")
@@ -39,11 +157,99 @@ public class InstanaSpan implements Span, SpanContext {
     }
   }
 
-  @SuppressWarnings("unused")
   private InstanaSpan start(long time) {
+    if (recorder != null) {
+      startNanos -= TimeUnit.MICROSECONDS.toNanos(startMicros - time);
+      startMicros = time;
+    }
     return this;
   }
 
+  /**
+   * @return The operation name of this span if it is recorded.
+   */
+  public String operationName() {
+    return operationName;
+  }
+
+  /**
+   * @return The upper 64 bit of the trace id of this span if it is recorded, or {@code 0} for a 64 bit trace id.
+   */
+  public long traceIdHigh() {
+    return traceIdHigh;
+  }
+
+  /**
+   * @return The lower 64 bit of the trace id of this span if it is recorded.
+   */
+  public long traceIdLow() {
+    return traceIdLow;
+  }
+
+  /**
+   * @return The id of this span if it is recorded.
+   */
+  public long spanId() {
+    return spanId;
+  }
+
+  /**
+   * @return The id of the parent span if this span is recorded, or {@code 0} if this span is a root span.
+   */
+  public long parentSpanId() {
+    return parentSpanId;
+  }
+
+  /**
+   * @return {@code true} if this span is recorded and its parent, if any, is not a span of this process.
+   */
+  public boolean isLocalRoot() {
+    return localRoot;
+  }
+
+  /**
+   * @return The start time of this span in microseconds since the epoch if it is recorded.
+   */
+  public long startMicros() {
+    return startMicros;
+  }
+
+  /**
+   * @return The duration of this span in microseconds if it is recorded and finished.
+   */
+  public long durationMicros() {
+    return durationMicros;
+  }
+
+  /**
+   * @return An unmodifiable view of the tags of this span if it is recorded, including the tags of its template unless
+   *         they were overridden on the span. This includes the aggregates of collapsed child spans once this span is
+   *         finished.
+   */
+  public Map<String, String> tags() {
+    if (tags == null) {
+      return Collections.emptyMap();
+    } else if (template == null || template.tags().isEmpty()) {
+      return Collections.unmodifiableMap(tags);
+    }
+    return new MergedTags(template.tags(), tags);
+  }
+
+  /**
+   * @return The template that this span was built from whose tags apply to this span or {@code null} if the span was not
+   *         built from a template.
+   */
+  public SpanTemplate template() {
+    return template;
+  }
+
+  /**
+   * @return The {@code FOLLOWS_FROM} links of this span.
+   */
+  public SpanLinks links() {
+    return links;
+  }
+
   @Override
   public SpanContext context() {
     return this;
@@ -56,24 +262,43 @@ public class InstanaSpan implements Span, SpanContext {
 
   @Override
   public void finish() {
+    if (recorder != null) {
+      complete(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    } else {
+      resolveDeferredTags();
+    }
   }
 
   @Override
   public void finish(long finishMicros) {
+    if (recorder != null) {
+      complete(finishMicros - startMicros);
+    } else {
+      resolveDeferredTags();
+    }
   }
 
   @Override
   public Span setTag(String key, String value) {
+    if (tags != null && key != null && value != null) {
+      tags.put(key, value);
+    }
     return this;
   }
 
   @Override
   public Span setTag(String key, boolean value) {
+    if (tags != null && key != null) {
+      tags.put(key, Boolean.toString(value));
+    }
     return this;
   }
 
   @Override
   public Span setTag(String key, Number value) {
+    if (tags != null && key != null && value != null) {
+      tags.put(key, value.toString());
+    }
     return this;
   }
 
@@ -85,6 +310,55 @@ public class InstanaSpan implements Span, SpanContext {
     return this;
   }
 
+  /**
+   * Sets a tag whose value is only computed if this span is sampled and reported.
+   *
+   * @param key
+   *          The tag key.
+   * @param value
+   *          A supplier of the tag value.
+   * @return This span.
+   */
+  public InstanaSpan setDeferredTag(String key, TagSupplier<?> value) {
+    return setDeferredTag(key, value, DeferredTags.DEFAULT_BUDGET_NANOS, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Sets a tag whose value is only computed if this span is sampled and reported.
+   *
+   * @param key
+   *          The tag key.
+   * @param value
+   *          A supplier of the tag value.
+   * @param budget
+   *          The time budget of the supplier after which no further deferred tags of this span are computed.
+   * @param unit
+   *          The unit of the budget.
+   * @return This span.
+   */
+  public synchronized InstanaSpan setDeferredTag(String key, TagSupplier<?> value, long budget, TimeUnit unit) {
+    if (key != null && value != null) {
+      deferredTags().add(key, value, unit.toNanos(budget));
+    }
+    return this;
+  }
+
+  /**
+   * Computes and sets all deferred tags of this span unless the span is not sampled. Without a recorder, this method
+   * is invoked when the span finishes, otherwise by the {@link SpanRecorder} that reports the span right before the
+   * span is serialized.
+   */
+  public void resolveDeferredTags() {
+    DeferredTags deferredTags;
+    synchronized (this) {
+      deferredTags = this.deferredTags;
+      this.deferredTags = null;
+    }
+    if (deferredTags != null && isSampled()) {
+      deferredTags.resolve(this);
+    }
+  }
+
   @Override
   public Span log(Map<String, ?> fields) {
     return log(System.currentTimeMillis(), fields);
@@ -110,10 +384,56 @@ public class InstanaSpan implements Span, SpanContext {
 
   @Override
   public Span setBaggageItem(String key, String value) {
-    baggageItems.put(key, value);
+    propagationLimits.put(baggageItems, key, value);
     return this;
   }
 
+  /**
+   * @return The items to propagate for this span. A recorded span propagates its own trace and span ids instead of
+   *         the inherited trace context headers.
+   */
+  Iterable<Map.Entry<String, String>> propagatedItems() {
+    if (recorder == null) {
+      return baggageItems.entrySet();
+    }
+    Map<String, String> items = new LinkedHashMap<String, String>(); // ids first to never be dropped by limits
+    String traceId = hex(traceIdHigh) + hex(traceIdLow), spanId = toSpanId();
+    items.put(HttpHeaderScanner.HEADERS[HttpHeaderScanner.X_INSTANA_T], toTraceId());
+    items.put(HttpHeaderScanner.HEADERS[HttpHeaderScanner.X_INSTANA_S], spanId);
+    items.put(HttpHeaderScanner.HEADERS[HttpHeaderScanner.TRACEPARENT],
+        "00-" + traceId + "-" + spanId + (isSampled() ? "-01" : "-00"));
+    for (Map.Entry<String, String> baggageItem : baggageItems.entrySet()) {
+      String key = baggageItem.getKey();
+      if (PropagationLimits.TRACESTATE.equalsIgnoreCase(key)) {
+        items.put(key, withInstanaMember(baggageItem.getValue(), hex(traceIdLow) + ";" + spanId));
+      } else if (!isTraceContextHeader(key)) {
+        items.put(key, baggageItem.getValue());
+      }
+    }
+    return items.entrySet();
+  }
+
+  private static boolean isTraceContextHeader(String key) {
+    return HttpHeaderScanner.HEADERS[HttpHeaderScanner.X_INSTANA_T].equalsIgnoreCase(key)
+        || HttpHeaderScanner.HEADERS[HttpHeaderScanner.X_INSTANA_S].equalsIgnoreCase(key)
+        || HttpHeaderScanner.HEADERS[HttpHeaderScanner.TRACEPARENT].equalsIgnoreCase(key);
+  }
+
+  /**
+   * Replaces the Instana list member of a {@code tracestate} header, or prepends it, as list members are updated by
+   * moving them to the front.
+   */
+  private static String withInstanaMember(String tracestate, String value) {
+    StringBuilder updated = new StringBuilder("in=").append(value);
+    for (String member : tracestate.split(",")) {
+      member = member.trim();
+      if (member.length() > 0 && !member.startsWith("in=")) {
+        updated.append(',').append(member);
+      }
+    }
+    return updated.toString();
+  }
+
   @Override
   public String getBaggageItem(String key) {
     return baggageItems.get(key);
@@ -121,9 +441,95 @@ public class InstanaSpan implements Span, SpanContext {
 
   @Override
   public Span setOperationName(String operationName) {
+    if (recorder != null) {
+      this.operationName = operationName;
+    }
     return this;
   }
 
+  private void complete(long durationMicros) {
+    CollapsedSpans collapsedSpans;
+    InstanaSpan collapseParent;
+    synchronized (this) {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      this.durationMicros = Math.max(0L, durationMicros);
+      collapsedSpans = this.collapsedSpans;
+      this.collapsedSpans = null;
+      collapseParent = this.collapseParent;
+      this.collapseParent = null;
+      // the parent is locked while holding the lock of its child, never the other way round
+      if (collapseParent != null && !recordedChild && this.durationMicros < collapseThresholdMicros && !isError()
+          && collapseParent.collapse(operationName, this.durationMicros, collapsedSpans)) {
+        collapsedInto = collapseParent;
+        return;
+      }
+    }
+    if (collapseParent != null) {
+      parentSpanId = collapseParent.onRecordedChild();
+    }
+    if (collapsedSpans != null) {
+      collapsedSpans.applyTo(tags);
+    }
+    recorder.record(this);
+  }
+
+  /**
+   * Aggregates a finished child span into this span unless this span is already finished.
+   */
+  private synchronized boolean collapse(String operationName, long durationMicros, CollapsedSpans nested) {
+    if (finished) {
+      return false;
+    }
+    if (collapsedSpans == null) {
+      collapsedSpans = new CollapsedSpans();
+    }
+    collapsedSpans.add(String.valueOf(operationName), 1L, durationMicros);
+    if (nested != null) { // retain the aggregates of the collapsed span's own children
+      collapsedSpans.addAll(nested);
+    }
+    return true;
+  }
+
+  /**
+   * Prevents this span from being collapsed as a child of it is recorded.
+   *
+   * @return The id of the closest recorded ancestor which is this span unless this span was already collapsed.
+   */
+  private long onRecordedChild() {
+    InstanaSpan collapsedInto;
+    synchronized (this) {
+      recordedChild = true;
+      collapsedInto = this.collapsedInto;
+    }
+    return collapsedInto == null ? spanId : collapsedInto.onRecordedChild();
+  }
+
+  /**
+   * @return {@code true} if this span or its template has an {@code error} tag with value {@code true}.
+   */
+  boolean isError() {
+    return "true".equals(tags().get("error"));
+  }
+
+  private DeferredTags deferredTags() {
+    if (deferredTags == null) {
+      deferredTags = new DeferredTags();
+    }
+    return deferredTags;
+  }
+
+  private boolean isSampled() {
+    for (Map.Entry<String, String> baggageItem : baggageItems.entrySet()) { // extracted keys retain their case
+      if (HttpHeaderScanner.HEADERS[HttpHeaderScanner.X_INSTANA_L].equalsIgnoreCase(baggageItem.getKey())) {
+        return !baggageItem.getValue().startsWith("0");
+      }
+    }
+    return true;
+  }
+
   private Span log(long timestampMicroseconds, String eventName, Object payload) {
     if (payload == null) {
       return this;
@@ -133,12 +539,112 @@ public class InstanaSpan implements Span, SpanContext {
 
   @Override
   public String toSpanId() {
-    return "";
+    return recorder == null ? "" : hex(spanId);
   }
 
   @Override
   public String toTraceId() {
-    return "";
+    if (recorder == null) {
+      return "";
+    }
+    return traceIdHigh == 0L ? hex(traceIdLow) : hex(traceIdHigh) + hex(traceIdLow);
+  }
+
+  private static long randomId() {
+    long id;
+    do {
+      id = RANDOM.get().nextLong();
+    } while (id == 0L);
+    return id;
+  }
+
+  private static String hex(long value) {
+    String hex = Long.toHexString(value);
+    StringBuilder padded = new StringBuilder(16);
+    for (int index = hex.length(); index < 16; index++) {
+      padded.append('0');
+    }
+    return padded.append(hex).toString();
   }
 
+
+  /**
+   * A read-only view of the tags of a template and a span where the span's tags take precedence.
+   */
+  private static class MergedTags extends AbstractMap<String, String> {
+
+    private final Map<String, String> templateTags, spanTags;
+
+    MergedTags(Map<String, String> templateTags, Map<String, String> spanTags) {
+      this.templateTags = templateTags;
+      this.spanTags = spanTags;
+    }
+
+    @Override
+    public String get(Object key) {
+      String value = spanTags.get(key);
+      return value == null ? templateTags.get(key) : value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return spanTags.containsKey(key) || templateTags.containsKey(key);
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+      return new AbstractSet<Map.Entry<String, String>>() {
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+          return new Iterator<Map.Entry<String, String>>() {
+
+            private final Iterator<Map.Entry<String, String>> template = templateTags.entrySet().iterator(),
+                span = spanTags.entrySet().iterator();
+
+            private Map.Entry<String, String> next;
+
+            @Override
+            public boolean hasNext() {
+              while (next == null && template.hasNext()) {
+                Map.Entry<String, String> entry = template.next();
+                if (!spanTags.containsKey(entry.getKey())) {
+                  next = entry;
+                }
+              }
+              return next != null || span.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+              if (!hasNext()) {
+                throw new NoSuchElementException();
+              }
+              Map.Entry<String, String> entry = next;
+              if (entry == null) {
+                return new SimpleImmutableEntry<String, String>(span.next());
+              }
+              next = null;
+              return entry;
+            }
+
+            @Override
+            public void remove() {
+              throw new UnsupportedOperationException();
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          int size = spanTags.size();
+          for (String key : templateTags.keySet()) {
+            if (!spanTags.containsKey(key)) {
+              size++;
+            }
+          }
+          return size;
+        }
+      };
+    }
+  }
 }
@@ -4,9 +4,9 @@
  */
 package com.instana.opentracing;
 
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import io.opentracing.References;
 import io.opentracing.ScopeManager;
@@ -14,26 +14,61 @@ import io.opentracing.Span;
 import io.opentracing.SpanContext;
 import io.opentracing.Tracer;
 import io.opentracing.Tracer.SpanBuilder;
+import io.opentracing.propagation.TextMapExtract;
 import io.opentracing.tag.Tag;
 
 public class InstanaSpanBuilder implements Tracer.SpanBuilder {
 
   private final ScopeManager scopeManager;
 
+  private final PropagationLimits propagationLimits;
+
+  private final TracerTelemetry telemetry;
+
+  private final SpanRecorder recorder;
+
+  private final long collapseThresholdMicros;
+
+  private final int maxLinks;
+
   private final String operationName;
 
-  private final Map<String, String> tags;
+  private final SpanTemplate template;
+
+  private Map<String, String> tags;
 
   private boolean ignoreActiveSpan;
 
   private SpanContext parentContext;
 
+  private SpanLinks links;
+
+  private DeferredTags deferredTags;
+
   private long startTime;
 
-  InstanaSpanBuilder(ScopeManager scopeManager, String operationName) {
+  InstanaSpanBuilder(ScopeManager scopeManager, PropagationLimits propagationLimits, TracerTelemetry telemetry,
+      SpanRecorder recorder, long collapseThresholdMicros, int maxLinks, String operationName) {
     this.scopeManager = scopeManager;
+    this.propagationLimits = propagationLimits;
+    this.telemetry = telemetry;
+    this.recorder = recorder;
+    this.collapseThresholdMicros = collapseThresholdMicros;
+    this.maxLinks = maxLinks;
     this.operationName = operationName;
-    tags = new HashMap<String, String>();
+    template = null;
+  }
+
+  InstanaSpanBuilder(ScopeManager scopeManager, PropagationLimits propagationLimits, TracerTelemetry telemetry,
+      SpanRecorder recorder, long collapseThresholdMicros, int maxLinks, SpanTemplate template) {
+    this.scopeManager = scopeManager;
+    this.propagationLimits = propagationLimits;
+    this.telemetry = telemetry;
+    this.recorder = recorder;
+    this.collapseThresholdMicros = collapseThresholdMicros;
+    this.maxLinks = maxLinks;
+    this.operationName = template.operationName();
+    this.template = template;
   }
 
   @Override
@@ -63,17 +98,52 @@ public class InstanaSpanBuilder implements Tracer.SpanBuilder {
     if (References.CHILD_OF.equals(referenceType)) {
       return asChildOf(referencedContext);
     } else if (References.FOLLOWS_FROM.equals(referenceType)) {
-      // TODO: Currently the FOLLOWS_FROM semantic is not fully supported, but its better to have CHILD_OF than nothing
-      return asChildOf(referencedContext);
+      if (referencedContext != null) {
+        links().add(referencedContext);
+        if (parentContext == null) { // retain a parent for consumers that do not consider links
+          asChildOf(referencedContext);
+        }
+      }
+      return this;
     } else {
       return this;
     }
   }
 
+  /**
+   * Adds a {@code FOLLOWS_FROM} link to the span that is described by the supplied carrier without extracting a span
+   * context first. This is meant for consumers that process a batch of messages, each with its own context.
+   *
+   * @param carrier
+   *          A carrier containing the Instana or W3C trace context headers.
+   * @return This span builder.
+   */
+  public InstanaSpanBuilder addLink(TextMapExtract carrier) {
+    if (carrier != null) {
+      links().add(carrier);
+    }
+    return this;
+  }
+
+  /**
+   * Adds a {@code FOLLOWS_FROM} link to the span that is described by the supplied header block without extracting a
+   * span context first.
+   *
+   * @param carrier
+   *          A raw HTTP header block containing the Instana or W3C trace context headers.
+   * @return This span builder.
+   */
+  public InstanaSpanBuilder addLink(HttpHeaderBlock carrier) {
+    if (carrier != null) {
+      links().add(carrier);
+    }
+    return this;
+  }
+
   @Override
   public Tracer.SpanBuilder withTag(String key, String value) {
     if (key != null && value != null) {
-      tags.put(key, value);
+      tags().put(key, value);
     }
     return this;
   }
@@ -81,7 +151,7 @@ public class InstanaSpanBuilder implements Tracer.SpanBuilder {
   @Override
   public Tracer.SpanBuilder withTag(String key, boolean value) {
     if (key != null) {
-      tags.put(key, Boolean.toString(value));
+      tags().put(key, Boolean.toString(value));
     }
     return this;
   }
@@ -89,7 +159,7 @@ public class InstanaSpanBuilder implements Tracer.SpanBuilder {
   @Override
   public Tracer.SpanBuilder withTag(String key, Number value) {
     if (key != null && value != null) {
-      tags.put(key, value.toString());
+      tags().put(key, value.toString());
     }
     return this;
   }
@@ -97,7 +167,43 @@ public class InstanaSpanBuilder implements Tracer.SpanBuilder {
   @Override
   public <T> SpanBuilder withTag(Tag<T> key, T value) {
     if (key != null && value != null) {
-      tags.put(key.getKey(), value.toString());
+      tags().put(key.getKey(), value.toString());
+    }
+    return this;
+  }
+
+  /**
+   * Adds a tag whose value is only computed if the started span is sampled and reported.
+   *
+   * @param key
+   *          The tag key.
+   * @param value
+   *          A supplier of the tag value.
+   * @return This span builder.
+   */
+  public InstanaSpanBuilder withDeferredTag(String key, TagSupplier<?> value) {
+    return withDeferredTag(key, value, DeferredTags.DEFAULT_BUDGET_NANOS, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Adds a tag whose value is only computed if the started span is sampled and reported.
+   *
+   * @param key
+   *          The tag key.
+   * @param value
+   *          A supplier of the tag value.
+   * @param budget
+   *          The time budget of the supplier after which no further deferred tags of the span are computed.
+   * @param unit
+   *          The unit of the budget.
+   * @return This span builder.
+   */
+  public InstanaSpanBuilder withDeferredTag(String key, TagSupplier<?> value, long budget, TimeUnit unit) {
+    if (key != null && value != null) {
+      if (deferredTags == null) {
+        deferredTags = new DeferredTags();
+      }
+      deferredTags.add(key, value, unit.toNanos(budget));
     }
     return this;
   }
@@ -110,27 +216,52 @@ public class InstanaSpanBuilder implements Tracer.SpanBuilder {
 
   @Override
   public Span start() {
+    if (recorder != null) { // spans must be captured to be recorded in-process
+      return doStart(null);
+    }
+    telemetry.onNoopSpan();
     return InstanaNoopSpan.INSTANCE;
   }
 
   @SuppressWarnings("unused")
   public Span doStart(Object dispatcher) {
-    Span span = new InstanaSpan(dispatcher, baggageItems()).considerStart(startTime).setOperationName(operationName);
-    for (Map.Entry<String, String> tag : tags.entrySet()) {
-      span.setTag(tag.getKey(), tag.getValue());
+    telemetry.onSpan();
+    SpanContext parent = parent();
+    Span span = new InstanaSpan(dispatcher, parent, propagationLimits).withRecorder(recorder, parent)
+        .withCollapseThreshold(collapseThresholdMicros, parent).withTemplate(template)
+        .withLinks(links == null ? null : links.copy())
+        .withDeferredTags(deferredTags).considerStart(startTime).setOperationName(operationName);
+    if (tags != null) {
+      for (Map.Entry<String, String> tag : tags.entrySet()) {
+        span.setTag(tag.getKey(), tag.getValue());
+      }
     }
     return span;
   }
 
-  private Iterable<Map.Entry<String, String>> baggageItems() {
+  private Map<String, String> tags() {
+    if (tags == null) {
+      tags = new HashMap<String, String>();
+    }
+    return tags;
+  }
+
+  private SpanLinks links() {
+    if (links == null) {
+      links = new SpanLinks(maxLinks);
+    }
+    return links;
+  }
+
+  private SpanContext parent() {
     if (parentContext != null) { // prefer explicit parent
-      return parentContext.baggageItems();
+      return parentContext;
     } else if (!ignoreActiveSpan) {
       Span span = scopeManager.activeSpan();
       if (span != null) {
-        return span.context().baggageItems();
+        return span.context();
       }
     }
-    return Collections.<String, String> emptyMap().entrySet();
+    return null;
   }
 }
\ No newline at end of file
@@ -9,6 +9,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
 
 import io.opentracing.Scope;
 import io.opentracing.ScopeManager;
@@ -28,12 +29,68 @@ public class InstanaTracer implements Tracer {
 
   private final ScopeManager scopeManager;
 
+  private final PropagationLimits propagationLimits;
+
+  private final TracerTelemetry telemetry;
+
+  private final SpanRecorder recorder;
+
+  private final long collapseThresholdMicros;
+
+  private final int maxLinks;
+
   /**
    * Creates a new Instana tracer with an implicit {@link ScopeManager} that is registered by the Java
    * {@link ServiceLoader}. If no scope manager is registered, this tracer will not offer support for active spans. To
    * set a scope manager explicitly, use {@link InstanaTracer#InstanaTracer(ScopeManager)}.
    */
   public InstanaTracer() {
+    this(builder());
+  }
+
+  /**
+   * Creates a new Instana tracer.
+   *
+   * @param scopeManager
+   *          The active span source to use.
+   */
+  public InstanaTracer(ScopeManager scopeManager) {
+    this(builder(scopeManager));
+  }
+
+  private InstanaTracer(Builder builder) {
+    this.scopeManager = builder.scopeManager;
+    this.propagationLimits = builder.propagationLimits;
+    this.recorder = builder.recorder;
+    this.collapseThresholdMicros = builder.collapseThresholdMicros;
+    this.maxLinks = builder.maxLinks;
+    this.telemetry = builder.telemetry == null
+        ? new TracerTelemetry(TracerTelemetry.configuredLevel(), propagationLimits) : builder.telemetry;
+    telemetry.register();
+  }
+
+  /**
+   * Creates a builder for a tracer with an implicit {@link ScopeManager} that is registered by the Java
+   * {@link ServiceLoader}, similarly to {@link InstanaTracer#InstanaTracer()}.
+   *
+   * @return A builder for a tracer.
+   */
+  public static Builder builder() {
+    return new Builder(loadScopeManager());
+  }
+
+  /**
+   * Creates a builder for a tracer.
+   *
+   * @param scopeManager
+   *          The active span source to use.
+   * @return A builder for a tracer.
+   */
+  public static Builder builder(ScopeManager scopeManager) {
+    return new Builder(scopeManager);
+  }
+
+  private static ScopeManager loadScopeManager() {
     ScopeManager scopeManager = null;
     try {
       Iterator<ScopeManager> it = ServiceLoader.load(ScopeManager.class).iterator();
@@ -43,25 +100,40 @@ public class InstanaTracer implements Tracer {
     } catch (Exception ignored) {
     }
     if (scopeManager == null) {
-      this.scopeManager = new InactiveScopeManager();
+      return new InactiveScopeManager();
     } else {
-      this.scopeManager = scopeManager;
+      return scopeManager;
     }
   }
 
+  @Override
+  public SpanBuilder buildSpan(String operationName) {
+    return new InstanaSpanBuilder(scopeManager, propagationLimits, telemetry, recorder, collapseThresholdMicros,
+        maxLinks, operationName);
+  }
+
   /**
-   * Creates a new Instana tracer.
+   * Creates a builder for a template of an operation name and its constant tags. Spans built from such a template share
+   * its tags by reference such that only per span tags must be added to the span builder.
    *
-   * @param scopeManager
-   *          The active span source to use.
+   * @param operationName
+   *          The operation name of spans that are built from the template.
+   * @return A builder for a span template.
    */
-  public InstanaTracer(ScopeManager scopeManager) {
-    this.scopeManager = scopeManager;
+  public SpanTemplate.Builder buildSpanTemplate(String operationName) {
+    return new SpanTemplate.Builder(operationName);
   }
 
-  @Override
-  public SpanBuilder buildSpan(String operationName) {
-    return new InstanaSpanBuilder(scopeManager, operationName);
+  /**
+   * Creates a span builder for the operation name and constant tags of the supplied template.
+   *
+   * @param template
+   *          The template of the span.
+   * @return A span builder.
+   */
+  public InstanaSpanBuilder buildSpan(SpanTemplate template) {
+    return new InstanaSpanBuilder(scopeManager, propagationLimits, telemetry, recorder, collapseThresholdMicros,
+        maxLinks, template);
   }
 
   @Override
@@ -81,27 +153,53 @@ public class InstanaTracer implements Tracer {
 
   @Override
   public <C> void inject(SpanContext spanContext, Format<C> format, C carrier) {
+    long started = telemetry.startInjectionTiming();
+    Iterable<Map.Entry<String, String>> items = spanContext instanceof InstanaSpan
+        ? ((InstanaSpan) spanContext).propagatedItems() : spanContext.baggageItems();
     if (format.equals(Format.Builtin.TEXT_MAP) || format.equals(Format.Builtin.TEXT_MAP_INJECT)
         || format.equals(Format.Builtin.HTTP_HEADERS)) {
       if (!(carrier instanceof TextMapInject)) {
         throw new IllegalArgumentException("Expected text map carrier: " + carrier);
       }
-      for (Map.Entry<String, String> entry : spanContext.baggageItems()) {
-        ((TextMapInject) carrier).put(entry.getKey(), entry.getValue());
+      int entries = 0, totalBytes = 0;
+      for (int pass = 0; pass < 2; pass++) { // propagation headers are admitted before other items
+        for (Map.Entry<String, String> entry : items) {
+          if (PropagationLimits.isPropagationHeader(entry.getKey()) != (pass == 0)) {
+            continue;
+          }
+          String value = propagationLimits.admit(entry.getKey(), entry.getValue(), entries, totalBytes);
+          if (value != null) {
+            ((TextMapInject) carrier).put(entry.getKey(), value);
+            entries++;
+            totalBytes += PropagationLimits.utf8Length(entry.getKey()) + PropagationLimits.utf8Length(value);
+          }
+        }
       }
     } else if (format.equals(Format.Builtin.BINARY) || format.equals(Format.Builtin.BINARY_INJECT)) {
       if (!(carrier instanceof BinaryInject)) {
         throw new IllegalArgumentException("Expected a byte buffer carrier: " + carrier);
       }
       int requiredSize = 1; // we end with a NO_ENTRY marker
+      int entries = 0, totalBytes = 0;
       ArrayList<byte[]> binary = new ArrayList<byte[]>();
-      for (Map.Entry<String, String> entry : spanContext.baggageItems()) {
-        requiredSize += 1 + 4 + 4; // ENTRY marker + size of key and size of value
-        byte[] key = entry.getKey().getBytes(ByteBufferContext.CHARSET);
-        byte[] value = entry.getValue().getBytes(ByteBufferContext.CHARSET);
-        requiredSize += key.length + value.length;
-        binary.add(key);
-        binary.add(value);
+      for (int pass = 0; pass < 2; pass++) { // propagation headers are admitted before other items
+        for (Map.Entry<String, String> entry : items) {
+          if (PropagationLimits.isPropagationHeader(entry.getKey()) != (pass == 0)) {
+            continue;
+          }
+          String admitted = propagationLimits.admit(entry.getKey(), entry.getValue(), entries, totalBytes);
+          if (admitted == null) {
+            continue;
+          }
+          requiredSize += 1 + 4 + 4; // ENTRY marker + size of key and size of value
+          byte[] key = entry.getKey().getBytes(ByteBufferContext.CHARSET);
+          byte[] value = admitted.getBytes(ByteBufferContext.CHARSET);
+          requiredSize += key.length + value.length;
+          entries++;
+          totalBytes += key.length + value.length;
+          binary.add(key);
+          binary.add(value);
+        }
       }
       ByteBuffer injectionBuffer = ((BinaryInject) carrier).injectionBuffer(requiredSize);
       Iterator<byte[]> iterator = binary.iterator();
@@ -119,12 +217,16 @@ public class InstanaTracer implements Tracer {
     } else {
       throw new IllegalArgumentException("Unsupported format: " + format);
     }
+    telemetry.onInjection(started);
   }
 
   @Override
   public <C> SpanContext extract(Format<C> format, C carrier) {
+    long started = telemetry.startExtractionTiming();
     SpanContext spanContext = extractContext(format, carrier);
-    if ("".equals(spanContext.toTraceId())) {
+    boolean empty = "".equals(spanContext.toTraceId());
+    telemetry.onExtraction(started, empty);
+    if (empty) {
       return null;
     }
     return spanContext;
@@ -137,12 +239,18 @@ public class InstanaTracer implements Tracer {
       if (!(carrier instanceof TextMapExtract)) {
         throw new IllegalArgumentException("Unsupported payload: " + carrier);
       }
-      spanContext = new TextMapContext((TextMapExtract) carrier);
+      spanContext = new TextMapContext((TextMapExtract) carrier, propagationLimits, telemetry);
     } else if (format.equals(Format.Builtin.BINARY) || format.equals(Format.Builtin.BINARY_EXTRACT)) {
       if (!(carrier instanceof BinaryExtract)) {
         throw new IllegalArgumentException("Unsupported payload: " + carrier);
       }
-      spanContext = new ByteBufferContext((BinaryExtract) carrier);
+      spanContext = new ByteBufferContext((BinaryExtract) carrier, propagationLimits, telemetry);
+    } else if (format.equals(InstanaFormat.HTTP_HEADER_BLOCK)) {
+      if (!(carrier instanceof HttpHeaderBlock)) {
+        throw new IllegalArgumentException("Unsupported payload: " + carrier);
+      }
+      spanContext = new TextMapContext(
+          BaggageItemUtil.filterItems((HttpHeaderBlock) carrier, propagationLimits, telemetry));
     } else {
       throw new IllegalArgumentException("Unsupported format: " + format);
     }
@@ -151,5 +259,90 @@ public class InstanaTracer implements Tracer {
 
   @Override
   public void close() {
+    telemetry.unregister();
+  }
+
+  /**
+   * A builder for an {@link InstanaTracer} with optional settings.
+   */
+  public static class Builder {
+
+    private final ScopeManager scopeManager;
+
+    private PropagationLimits propagationLimits = PropagationLimits.DEFAULT;
+
+    private SpanRecorder recorder;
+
+    private long collapseThresholdMicros = CollapsedSpans.DEFAULT_THRESHOLD_MICROS;
+
+    private int maxLinks = SpanLinks.DEFAULT_CAPACITY;
+
+    private TracerTelemetry telemetry;
+
+    Builder(ScopeManager scopeManager) {
+      this.scopeManager = scopeManager;
+    }
+
+    /**
+     * @param propagationLimits
+     *          The limits of the baggage that is propagated by the tracer.
+     * @return This builder.
+     */
+    public Builder withPropagationLimits(PropagationLimits propagationLimits) {
+      if (propagationLimits == null) {
+        throw new NullPointerException("propagationLimits");
+      }
+      this.propagationLimits = propagationLimits;
+      return this;
+    }
+
+    /**
+     * @param recorder
+     *          The recorder of finished spans or {@code null} if spans should not be recorded in-process.
+     * @return This builder.
+     */
+    public Builder withRecorder(SpanRecorder recorder) {
+      this.recorder = recorder;
+      return this;
+    }
+
+    /**
+     * Sets the duration below which recorded child spans are not recorded but aggregated per operation name into tags
+     * of their parent span.
+     *
+     * @param threshold
+     *          The collapse threshold or {@code 0} to record all spans.
+     * @param unit
+     *          The unit of the threshold.
+     * @return This builder.
+     */
+    public Builder withCollapseThreshold(long threshold, TimeUnit unit) {
+      collapseThresholdMicros = Math.max(0L, unit.toMicros(threshold));
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of links that are stored per span where additional links are only counted.
+     *
+     * @param maxLinks
+     *          The maximum number of links per span or {@code 0} to only count links.
+     * @return This builder.
+     */
+    public Builder withMaxLinks(int maxLinks) {
+      this.maxLinks = Math.max(0, maxLinks);
+      return this;
+    }
+
+    Builder withTelemetry(TracerTelemetry telemetry) {
+      this.telemetry = telemetry;
+      return this;
+    }
+
+    /**
+     * @return A new tracer.
+     */
+    public InstanaTracer build() {
+      return new InstanaTracer(this);
+    }
   }
 }
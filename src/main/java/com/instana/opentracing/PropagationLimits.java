@@ -0,0 +1,252 @@
+/*
+ * (c) Copyright IBM Corp. 2022
+ * (c) Copyright Instana Inc.
+ */
+package com.instana.opentracing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the baggage that is propagated by a tracer. Baggage items that exceed the maximum number of entries, the
+ * maximum size of a value or the maximum total size of all keys and values are dropped. The Instana and W3C trace
+ * context headers are admitted before any other baggage item and are never dropped, but count towards the limits of
+ * other items. The {@code tracestate} header is trimmed to the limits of the W3C trace context specification where the
+ * Instana list member is kept first. Every dropped item or trimmed header is counted as a truncation.
+ * <p>
+ * The default limits can be set by the {@code instana.opentracing.baggage.max.entries},
+ * {@code instana.opentracing.baggage.max.value.bytes} and {@code instana.opentracing.baggage.max.total.bytes} system
+ * properties.
+ */
+public class PropagationLimits {
+
+  static final PropagationLimits DEFAULT = new PropagationLimits(
+      Math.max(0, Integer.getInteger("instana.opentracing.baggage.max.entries", 64)),
+      Math.max(0, Integer.getInteger("instana.opentracing.baggage.max.value.bytes", 4096)),
+      Math.max(0, Integer.getInteger("instana.opentracing.baggage.max.total.bytes", 8192)));
+
+  static final String TRACESTATE = "tracestate";
+
+  private static final int TRACESTATE_MAX_MEMBERS = 32, TRACESTATE_MAX_LENGTH = 512, TRACESTATE_MAX_MEMBER_LENGTH = 128;
+
+  private static final String INSTANA_MEMBER = "in=";
+
+  private final int maxEntries, maxValueBytes, maxTotalBytes;
+
+  private final AtomicLong truncations = new AtomicLong();
+
+  /**
+   * Creates new propagation limits.
+   *
+   * @param maxEntries
+   *          The maximum number of baggage items.
+   * @param maxValueBytes
+   *          The maximum size of a single value in UTF-8 encoded bytes.
+   * @param maxTotalBytes
+   *          The maximum size of all keys and values in UTF-8 encoded bytes.
+   */
+  public PropagationLimits(int maxEntries, int maxValueBytes, int maxTotalBytes) {
+    if (maxEntries < 0 || maxValueBytes < 0 || maxTotalBytes < 0) {
+      throw new IllegalArgumentException("Propagation limits must not be negative");
+    }
+    this.maxEntries = maxEntries;
+    this.maxValueBytes = maxValueBytes;
+    this.maxTotalBytes = maxTotalBytes;
+  }
+
+  /**
+   * @return The number of baggage items that were dropped or trimmed since these limits were created.
+   */
+  public long truncations() {
+    return truncations.get();
+  }
+
+  /**
+   * Determines the value of a baggage item that can be admitted in addition to existing items.
+   *
+   * @param key
+   *          The key of the baggage item.
+   * @param value
+   *          The value of the baggage item.
+   * @param entries
+   *          The number of already admitted items.
+   * @param totalBytes
+   *          The size of the already admitted keys and values.
+   * @return The admitted value or {@code null} if the item must be dropped.
+   */
+  String admit(String key, String value, int entries, int totalBytes) {
+    if (key == null || value == null) {
+      return null;
+    }
+    if (TRACESTATE.equalsIgnoreCase(key)) {
+      value = trimTracestate(value);
+      return value.length() == 0 ? null : value;
+    } else if (isPropagationHeader(key)) {
+      return value;
+    }
+    int valueBytes = utf8Length(value);
+    if (entries >= maxEntries || valueBytes > maxValueBytes
+        || totalBytes + utf8Length(key) + valueBytes > maxTotalBytes) {
+      truncations.incrementAndGet();
+      return null;
+    }
+    return value;
+  }
+
+  /**
+   * Puts a baggage item into the supplied map if it can be admitted in addition to, or as a replacement of, the items
+   * in the map.
+   *
+   * @return {@code true} if the item was admitted.
+   */
+  boolean put(Map<String, String> baggageItems, String key, String value) {
+    int entries = 0, totalBytes = 0;
+    for (Map.Entry<String, String> baggageItem : baggageItems.entrySet()) {
+      if (!baggageItem.getKey().equals(key)) {
+        entries++;
+        totalBytes += utf8Length(baggageItem.getKey()) + utf8Length(baggageItem.getValue());
+      }
+    }
+    String admitted = admit(key, value, entries, totalBytes);
+    if (admitted == null) {
+      return false;
+    }
+    baggageItems.put(key, admitted);
+    return true;
+  }
+
+  /**
+   * Puts all baggage items that can be admitted into the supplied empty map, keeping a running total of the admitted
+   * items rather than recomputing it per item. Propagation headers are put first such that they count towards the
+   * limits of all other items.
+   */
+  void putAll(Map<String, String> baggageItems, Iterable<Map.Entry<String, String>> items) {
+    int[] totals = new int[2];
+    putAll(baggageItems, items, true, totals);
+    putAll(baggageItems, items, false, totals);
+  }
+
+  private void putAll(Map<String, String> baggageItems, Iterable<Map.Entry<String, String>> items, boolean headers,
+      int[] totals) {
+    int entries = totals[0], totalBytes = totals[1];
+    for (Map.Entry<String, String> item : items) {
+      if (isPropagationHeader(item.getKey()) != headers) {
+        continue;
+      }
+      String previous = baggageItems.get(item.getKey());
+      if (previous != null) { // a repeated key replaces the admitted item
+        entries--;
+        totalBytes -= utf8Length(item.getKey()) + utf8Length(previous);
+      }
+      String admitted = admit(item.getKey(), item.getValue(), entries, totalBytes);
+      if (admitted != null) {
+        baggageItems.put(item.getKey(), admitted);
+        entries++;
+        totalBytes += utf8Length(item.getKey()) + utf8Length(admitted);
+      } else if (previous != null) {
+        entries++;
+        totalBytes += utf8Length(item.getKey()) + utf8Length(previous);
+      }
+    }
+    totals[0] = entries;
+    totals[1] = totalBytes;
+  }
+
+  /**
+   * @return {@code true} if the key names one of the Instana or W3C trace context headers, regardless of its case.
+   */
+  static boolean isPropagationHeader(String key) {
+    for (String header : HttpHeaderScanner.HEADERS) {
+      if (header.equalsIgnoreCase(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Trims a {@code tracestate} header that exceeds 32 list members or 512 characters, first dropping members that
+   * exceed 128 characters and then dropping members from the end. When trimming, the Instana list member is moved to
+   * the front and is never dropped unless it exceeds 128 characters itself.
+   */
+  String trimTracestate(String tracestate) {
+    if (tracestate.length() <= TRACESTATE_MAX_LENGTH) {
+      int separators = 0;
+      for (int index = tracestate.indexOf(','); index != -1; index = tracestate.indexOf(',', index + 1)) {
+        separators++;
+      }
+      if (separators < TRACESTATE_MAX_MEMBERS) {
+        return tracestate;
+      }
+    }
+    List<String> members = new ArrayList<String>();
+    String instana = null;
+    int length = 0, from = 0;
+    while (from <= tracestate.length()) {
+      int to = tracestate.indexOf(',', from);
+      if (to == -1) {
+        to = tracestate.length();
+      }
+      String member = tracestate.substring(from, to).trim();
+      if (member.length() > 0) {
+        if (instana == null && member.startsWith(INSTANA_MEMBER) && member.length() <= TRACESTATE_MAX_MEMBER_LENGTH) {
+          instana = member;
+          members.add(0, member);
+        } else {
+          members.add(member);
+        }
+        length += member.length();
+      }
+      from = to + 1;
+    }
+    int size = members.size();
+    length += Math.max(0, size - 1);
+    for (int index = size - 1; index >= 0 && length > TRACESTATE_MAX_LENGTH; index--) {
+      String member = members.get(index);
+      if (member != instana && member.length() > TRACESTATE_MAX_MEMBER_LENGTH) {
+        members.remove(index);
+        length -= member.length() + 1;
+      }
+    }
+    for (int index = members.size() - 1; index >= 0
+        && (length > TRACESTATE_MAX_LENGTH || members.size() > TRACESTATE_MAX_MEMBERS); index--) {
+      String member = members.get(index);
+      if (member != instana) {
+        members.remove(index);
+        length -= member.length() + 1;
+      }
+    }
+    if (members.size() < size) {
+      truncations.incrementAndGet();
+    }
+    StringBuilder trimmed = new StringBuilder(Math.max(0, length));
+    for (String member : members) {
+      if (trimmed.length() > 0) {
+        trimmed.append(',');
+      }
+      trimmed.append(member);
+    }
+    return trimmed.toString();
+  }
+
+  static int utf8Length(String value) {
+    int length = 0;
+    for (int index = 0; index < value.length(); index++) {
+      char character = value.charAt(index);
+      if (character < 0x80) {
+        length += 1;
+      } else if (character < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(character) && index + 1 < value.length()
+          && Character.isLowSurrogate(value.charAt(index + 1))) {
+        length += 4;
+        index++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+}
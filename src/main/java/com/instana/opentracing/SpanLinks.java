@@ -0,0 +1,299 @@
+/*
+ * (c) Copyright IBM Corp. 2022
+ * (c) Copyright Instana Inc.
+ */
+package com.instana.opentracing;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import io.opentracing.SpanContext;
+import io.opentracing.propagation.TextMapExtract;
+
+/**
+ * A compact list of references to other spans, typically added as {@code FOLLOWS_FROM} references by consumers that
+ * process a batch of messages. Each link is stored as a triple of primitive trace id and span id values. Links that
+ * exceed the capacity are not stored but counted as an overflow. The maximum number of links per span defaults to
+ * the {@code instana.opentracing.links.max} system property and can be set per tracer by
+ * {@link InstanaTracer.Builder#withMaxLinks(int)}.
+ */
+public class SpanLinks {
+
+  static final int DEFAULT_CAPACITY = Math.max(0, Integer.getInteger("instana.opentracing.links.max", 128));
+
+  static final SpanLinks NONE = new SpanLinks(0);
+
+  private static final int SLOTS = 3, INITIAL_SIZE = 4;
+
+  private final int capacity;
+
+  private long[] ids = new long[0];
+
+  private int size, overflow;
+
+  private Collector collector;
+
+  SpanLinks(int capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * @return The number of stored links.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return The number of links that were discarded as the capacity was exceeded.
+   */
+  public int overflow() {
+    return overflow;
+  }
+
+  /**
+   * @param index The index of the link.
+   * @return The upper 64 bit of the linked trace id which are {@code 0} for 64 bit trace ids.
+   */
+  public long traceIdHigh(int index) {
+    return ids[slot(index)];
+  }
+
+  /**
+   * @param index The index of the link.
+   * @return The lower 64 bit of the linked trace id.
+   */
+  public long traceIdLow(int index) {
+    return ids[slot(index) + 1];
+  }
+
+  /**
+   * @param index The index of the link.
+   * @return The linked span id.
+   */
+  public long spanId(int index) {
+    return ids[slot(index) + 2];
+  }
+
+  boolean add(long traceIdHigh, long traceIdLow, long spanId) {
+    if ((traceIdHigh == 0L && traceIdLow == 0L) || spanId == 0L) {
+      return false;
+    } else if (size == capacity) {
+      overflow++;
+      return false;
+    }
+    if (ids.length == size * SLOTS) {
+      long[] resized = new long[Math.min(capacity, Math.max(INITIAL_SIZE, size * 2)) * SLOTS];
+      System.arraycopy(ids, 0, resized, 0, ids.length);
+      ids = resized;
+    }
+    int slot = size++ * SLOTS;
+    ids[slot] = traceIdHigh;
+    ids[slot + 1] = traceIdLow;
+    ids[slot + 2] = spanId;
+    return true;
+  }
+
+  boolean add(SpanContext spanContext) {
+    Collector collector = collector();
+    String traceId = spanContext.toTraceId(), spanId = spanContext.toSpanId();
+    if (traceId != null && traceId.length() > 0 && spanId != null && spanId.length() > 0) {
+      collector.onHeader(HttpHeaderScanner.X_INSTANA_T, traceId);
+      collector.onHeader(HttpHeaderScanner.X_INSTANA_S, spanId);
+    } else {
+      collector.onEntries(spanContext.baggageItems());
+    }
+    return collector.commit();
+  }
+
+  boolean add(TextMapExtract carrier) {
+    Collector collector = collector();
+    collector.onEntries(carrier);
+    return collector.commit();
+  }
+
+  boolean add(HttpHeaderBlock carrier) {
+    Collector collector = collector();
+    carrier.scan(collector);
+    return collector.commit();
+  }
+
+  private int slot(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("No link at index " + index + " of " + size);
+    }
+    return index * SLOTS;
+  }
+
+  /**
+   * Returns a copy of these links such that links which are added later are not shared.
+   */
+  SpanLinks copy() {
+    SpanLinks copy = new SpanLinks(capacity);
+    copy.ids = ids.clone();
+    copy.size = size;
+    copy.overflow = overflow;
+    return copy;
+  }
+
+  private Collector collector() {
+    if (collector == null) {
+      collector = new Collector();
+    } else {
+      collector.reset();
+    }
+    return collector;
+  }
+
+  /**
+   * Collects the ids of a single link from either a {@code x-instana-t} and {@code x-instana-s} header pair or from a
+   * {@code traceparent} header where the Instana headers take precedence. The collector is reused for all links of a
+   * list to avoid any allocation per link.
+   */
+  private class Collector implements HttpHeaderScanner.Visitor {
+
+    private static final int TRACEPARENT_LENGTH = 55;
+
+    private long instanaTraceIdHigh, instanaTraceIdLow, instanaSpanId;
+
+    private long traceparentTraceIdHigh, traceparentTraceIdLow, traceparentSpanId;
+
+    private final ByteSequence bytes = new ByteSequence();
+
+    private boolean invalid;
+
+    void reset() {
+      instanaTraceIdHigh = instanaTraceIdLow = instanaSpanId = 0L;
+      traceparentTraceIdHigh = traceparentTraceIdLow = traceparentSpanId = 0L;
+    }
+
+    void onEntries(Iterable<Map.Entry<String, String>> entries) {
+      for (Map.Entry<String, String> entry : entries) {
+        if (entry.getKey() == null || entry.getValue() == null) {
+          continue;
+        }
+        for (int header = 0; header < HttpHeaderScanner.HEADERS.length; header++) {
+          if (HttpHeaderScanner.HEADERS[header].equalsIgnoreCase(entry.getKey())) {
+            onHeader(header, entry.getValue());
+            break;
+          }
+        }
+      }
+    }
+
+    void onHeader(int header, CharSequence value) {
+      int length = value.length();
+      switch (header) {
+        case HttpHeaderScanner.X_INSTANA_T:
+          invalid = false;
+          long high = length > 16 ? parse(value, 0, length - 16) : 0L;
+          long low = parse(value, Math.max(0, length - 16), length);
+          if (!invalid) {
+            instanaTraceIdHigh = high;
+            instanaTraceIdLow = low;
+          }
+          break;
+        case HttpHeaderScanner.X_INSTANA_S:
+          invalid = false;
+          long spanId = parse(value, 0, length);
+          if (!invalid) {
+            instanaSpanId = spanId;
+          }
+          break;
+        case HttpHeaderScanner.TRACEPARENT:
+          if (length < TRACEPARENT_LENGTH || value.charAt(2) != '-' || value.charAt(35) != '-'
+              || value.charAt(52) != '-') {
+            return;
+          }
+          invalid = false;
+          long traceIdHigh = parse(value, 3, 19), traceIdLow = parse(value, 19, 35), parentId = parse(value, 36, 52);
+          if (!invalid) {
+            traceparentTraceIdHigh = traceIdHigh;
+            traceparentTraceIdLow = traceIdLow;
+            traceparentSpanId = parentId;
+          }
+          break;
+        default:
+      }
+    }
+
+    @Override
+    public void onHeader(int header, ByteBuffer buffer, int from, int to) {
+      bytes.wrap(buffer, from, to);
+      onHeader(header, bytes);
+    }
+
+    @Override
+    public void onIgnoredHeader() {
+    }
+
+    boolean commit() {
+      if ((instanaTraceIdHigh != 0L || instanaTraceIdLow != 0L) && instanaSpanId != 0L) {
+        return add(instanaTraceIdHigh, instanaTraceIdLow, instanaSpanId);
+      } else {
+        return add(traceparentTraceIdHigh, traceparentTraceIdLow, traceparentSpanId);
+      }
+    }
+
+    private long parse(CharSequence value, int from, int to) {
+      if (to - from > 16 || to == from) {
+        invalid = true;
+        return 0L;
+      }
+      long result = 0L;
+      for (int index = from; index < to; index++) {
+        result = (result << 4) | digit(value.charAt(index));
+      }
+      return result;
+    }
+
+    private int digit(char value) {
+      if (value >= '0' && value <= '9') {
+        return value - '0';
+      } else if (value >= 'a' && value <= 'f') {
+        return value - 'a' + 10;
+      } else if (value >= 'A' && value <= 'F') {
+        return value - 'A' + 10;
+      }
+      invalid = true;
+      return 0;
+    }
+  }
+
+  /**
+   * A reusable view of a range of an ASCII encoded buffer, such that header values are parsed by the same logic as
+   * strings without being decoded.
+   */
+  private static class ByteSequence implements CharSequence {
+
+    private ByteBuffer buffer;
+
+    private int from, to;
+
+    void wrap(ByteBuffer buffer, int from, int to) {
+      this.buffer = buffer;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public int length() {
+      return to - from;
+    }
+
+    @Override
+    public char charAt(int index) {
+      return (char) (buffer.get(from + index) & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return HttpHeaderScanner.decode(buffer, from + start, from + end);
+    }
+
+    @Override
+    public String toString() {
+      return HttpHeaderScanner.decode(buffer, from, to);
+    }
+  }
+}
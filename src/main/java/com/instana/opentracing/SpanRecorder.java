@@ -0,0 +1,23 @@
+/*
+ * (c) Copyright IBM Corp. 2022
+ * (c) Copyright Instana Inc.
+ */
+package com.instana.opentracing;
+
+/**
+ * Receives spans of an {@link InstanaTracer} once they are finished. When a tracer is configured with a recorder,
+ * its spans capture their ids, timing, operation name and tags such that they can be reported in-process, for
+ * example to an exporter or within integration tests. A recorder may retain a recorded span which is no longer
+ * modified by the tracer. Deferred tags of a span are not computed by the tracer, a recorder that reports a span
+ * invokes {@link InstanaSpan#resolveDeferredTags()} first whereas a recorder that only filters spans does not.
+ */
+public interface SpanRecorder {
+
+  /**
+   * Records a finished span. This method may be invoked concurrently from any thread that finishes a span.
+   *
+   * @param span
+   *          The finished span.
+   */
+  void record(InstanaSpan span);
+}
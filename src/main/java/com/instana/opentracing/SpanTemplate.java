@@ -0,0 +1,98 @@
+/*
+ * (c) Copyright IBM Corp. 2022
+ * (c) Copyright Instana Inc.
+ */
+package com.instana.opentracing;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.opentracing.tag.Tag;
+
+/**
+ * An immutable operation name with constant tags that are shared by reference among all recorded spans that are
+ * built from the template such that such spans only carry tags that are added per span in addition. Spans that are not
+ * recorded in-process receive the template's tags as regular tags when they start. A template is
+ * created by {@link InstanaTracer#buildSpanTemplate(String)} and used by {@link InstanaTracer#buildSpan(SpanTemplate)}.
+ */
+public final class SpanTemplate {
+
+  private final String operationName;
+
+  private final Map<String, String> tags;
+
+  private SpanTemplate(String operationName, Map<String, String> tags) {
+    this.operationName = operationName;
+    this.tags = tags;
+  }
+
+  /**
+   * @return The operation name of spans that are built from this template.
+   */
+  public String operationName() {
+    return operationName;
+  }
+
+  /**
+   * @return An unmodifiable map of the constant tags of this template.
+   */
+  public Map<String, String> tags() {
+    return tags;
+  }
+
+  @Override
+  public String toString() {
+    return "SpanTemplate{operationName=" + operationName + ", tags=" + tags + "}";
+  }
+
+  /**
+   * A builder for a {@link SpanTemplate}.
+   */
+  public static class Builder {
+
+    private final String operationName;
+
+    private final Map<String, String> tags = new LinkedHashMap<String, String>();
+
+    Builder(String operationName) {
+      this.operationName = operationName;
+    }
+
+    public Builder withTag(String key, String value) {
+      if (key != null && value != null) {
+        tags.put(key, value);
+      }
+      return this;
+    }
+
+    public Builder withTag(String key, boolean value) {
+      if (key != null) {
+        tags.put(key, Boolean.toString(value));
+      }
+      return this;
+    }
+
+    public Builder withTag(String key, Number value) {
+      if (key != null && value != null) {
+        tags.put(key, value.toString());
+      }
+      return this;
+    }
+
+    public <T> Builder withTag(Tag<T> key, T value) {
+      if (key != null && value != null) {
+        tags.put(key.getKey(), value.toString());
+      }
+      return this;
+    }
+
+    /**
+     * @return An immutable template of the operation name and tags that were added to this builder.
+     */
+    public SpanTemplate build() {
+      return new SpanTemplate(operationName,
+          Collections.unmodifiableMap(new LinkedHashMap<String, String>(tags)));
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * (c) Copyright IBM Corp. 2022
+ * (c) Copyright Instana Inc.
+ */
+package com.instana.opentracing;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads contended updates over multiple cells, similarly to {@code LongAdder} which is not available
+ * on Java 6. Threads are assigned to a cell by their id and cells are padded to avoid false sharing.
+ */
+class StripedCounter {
+
+  private static final int STRIPES, PADDING = 8; // 8 longs per cache line
+
+  static {
+    int stripes = 1;
+    while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 64) {
+      stripes <<= 1;
+    }
+    STRIPES = stripes;
+  }
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  void increment() {
+    add(1L);
+  }
+
+  void add(long value) {
+    cells.getAndAdd(cell(), value);
+  }
+
+  long sum() {
+    long sum = 0L;
+    for (int stripe = 0; stripe < STRIPES; stripe++) {
+      sum += cells.get(stripe * PADDING);
+    }
+    return sum;
+  }
+
+  private static int cell() {
+    long id = Thread.currentThread().getId();
+    return (int) ((id ^ (id >>> 16)) & (STRIPES - 1)) * PADDING;
+  }
+}
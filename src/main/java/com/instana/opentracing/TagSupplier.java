@@ -0,0 +1,18 @@
+/*
+ * (c) Copyright IBM Corp. 2022
+ * (c) Copyright Instana Inc.
+ */
+package com.instana.opentracing;
+
+/**
+ * Supplies the value of a deferred tag which is only computed if a span is sampled and reported.
+ *
+ * @param <T> The type of the tag value.
+ */
+public interface TagSupplier<T> {
+
+  /**
+   * @return The tag value or {@code null} if the tag should not be set.
+   */
+  T get();
+}
@@ -0,0 +1,356 @@
+/*
+ * (c) Copyright IBM Corp. 2022
+ * (c) Copyright Instana Inc.
+ */
+package com.instana.opentracing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A recorder that buffers finished spans per trace and only hands the spans of a trace to its delegate if any of the
+ * trace's spans matches a rule. The decision is made when the local root span of a trace finishes, or when the trace
+ * exceeds the time window without its local root span finishing. Spans of unkept traces are released immediately,
+ * spans that finish after the decision for their trace follow that decision.
+ * <p>
+ * The buffer is split into shards with a lock each. Traces are identified by both halves of their 128 bit trace id.
+ * Every shard holds a bounded number of traces where the oldest trace is decided once a shard is full. The memory of
+ * a buffered trace is bounded by capping its number of spans rather than their size in bytes, as spans are retained
+ * by reference. The local root span of a trace is always kept. Deferred tags are left to be computed by the delegate
+ * such that they are only computed for spans of kept traces.
+ */
+public class TailSamplingRecorder implements SpanRecorder {
+
+  /**
+   * A rule to decide if a trace is kept.
+   */
+  public interface Rule {
+
+    /**
+     * @param span
+     *          A finished span of a trace.
+     * @return {@code true} if the trace of the span should be kept.
+     */
+    boolean keep(InstanaSpan span);
+  }
+
+  private static final int SHARDS = 16, DECISIONS_PER_SHARD = 1024;
+
+  private final SpanRecorder delegate;
+
+  private final Rule[] rules;
+
+  private final Shard[] shards = new Shard[SHARDS];
+
+  private final int maxSpansPerTrace;
+
+  private final long windowNanos;
+
+  private final AtomicLong keptTraces = new AtomicLong(), droppedTraces = new AtomicLong();
+
+  private final AtomicLong droppedSpans = new AtomicLong();
+
+  /**
+   * Creates a recorder that buffers up to 16384 traces of up to 1000 spans each for at most 30 seconds.
+   *
+   * @param delegate
+   *          The recorder of spans of kept traces.
+   * @param rules
+   *          The rules of which any must match a span of a trace to keep the trace.
+   */
+  public TailSamplingRecorder(SpanRecorder delegate, Rule... rules) {
+    this(delegate, 16384, 1000, 30, TimeUnit.SECONDS, rules);
+  }
+
+  /**
+   * Creates a recorder.
+   *
+   * @param delegate
+   *          The recorder of spans of kept traces.
+   * @param maxTraces
+   *          The maximum number of buffered traces.
+   * @param maxSpansPerTrace
+   *          The maximum number of buffered spans per trace, which bounds the memory that is retained per trace.
+   * @param window
+   *          The time after which a trace is decided without its local root span having finished.
+   * @param unit
+   *          The unit of the window.
+   * @param rules
+   *          The rules of which any must match a span of a trace to keep the trace.
+   */
+  public TailSamplingRecorder(SpanRecorder delegate, int maxTraces, int maxSpansPerTrace, long window, TimeUnit unit,
+      Rule... rules) {
+    if (maxTraces < 1 || maxSpansPerTrace < 1) {
+      throw new IllegalArgumentException("The maximum number of traces and spans per trace must be positive");
+    }
+    this.delegate = delegate;
+    this.rules = rules.clone();
+    this.maxSpansPerTrace = maxSpansPerTrace;
+    windowNanos = unit.toNanos(window);
+    for (int index = 0; index < SHARDS; index++) {
+      shards[index] = new Shard(Math.max(1, (maxTraces + SHARDS - 1) / SHARDS));
+    }
+  }
+
+  /**
+   * @param micros
+   *          The minimal duration in microseconds.
+   * @return A rule that keeps traces with a span of at least the given duration.
+   */
+  public static Rule minDuration(final long micros) {
+    return new Rule() {
+      @Override
+      public boolean keep(InstanaSpan span) {
+        return span.durationMicros() >= micros;
+      }
+    };
+  }
+
+  /**
+   * @return A rule that keeps traces with a span that has an {@code error} tag with value {@code true}.
+   */
+  public static Rule error() {
+    return new Rule() {
+      @Override
+      public boolean keep(InstanaSpan span) {
+        return span.isError();
+      }
+    };
+  }
+
+  /**
+   * @param operationName
+   *          The operation name.
+   * @return A rule that keeps traces with a span of the given operation name.
+   */
+  public static Rule operationName(final String operationName) {
+    return new Rule() {
+      @Override
+      public boolean keep(InstanaSpan span) {
+        return operationName.equals(span.operationName());
+      }
+    };
+  }
+
+  @Override
+  public void record(InstanaSpan span) {
+    long traceId = span.traceIdHigh() ^ span.traceIdLow();
+    Shard shard = shards[(int) (traceId ^ (traceId >>> 32)) & (SHARDS - 1)];
+    List<InstanaSpan> kept;
+    synchronized (shard) {
+      kept = shard.expire(System.nanoTime(), null);
+      kept = shard.record(span, kept);
+    }
+    forward(kept);
+  }
+
+  /**
+   * Decides all traces that exceeded the time window. Expired traces are otherwise only decided when another span of
+   * the same shard is recorded.
+   */
+  public void expire() {
+    List<InstanaSpan> kept = null;
+    long now = System.nanoTime();
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        kept = shard.expire(now, kept);
+      }
+    }
+    forward(kept);
+  }
+
+  /**
+   * @return The number of traces that were kept.
+   */
+  public long keptTraces() {
+    return keptTraces.get();
+  }
+
+  /**
+   * @return The number of traces that were dropped.
+   */
+  public long droppedTraces() {
+    return droppedTraces.get();
+  }
+
+  /**
+   * @return The number of spans that were dropped as their trace exceeded the maximum number of spans.
+   */
+  public long droppedSpans() {
+    return droppedSpans.get();
+  }
+
+  private boolean matches(InstanaSpan span) {
+    for (Rule rule : rules) {
+      if (rule.keep(span)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void forward(List<InstanaSpan> spans) {
+    if (spans != null) {
+      for (InstanaSpan span : spans) {
+        delegate.record(span);
+      }
+    }
+  }
+
+  /**
+   * The 128 bit id of a trace. A shard reuses a single mutable key for lookups such that a key is only allocated when
+   * a trace or decision is added.
+   */
+  private static class TraceKey {
+
+    long traceIdHigh, traceIdLow;
+
+    TraceKey() {
+    }
+
+    TraceKey(long traceIdHigh, long traceIdLow) {
+      this.traceIdHigh = traceIdHigh;
+      this.traceIdLow = traceIdLow;
+    }
+
+    TraceKey set(InstanaSpan span) {
+      traceIdHigh = span.traceIdHigh();
+      traceIdLow = span.traceIdLow();
+      return this;
+    }
+
+    TraceKey copy() {
+      return new TraceKey(traceIdHigh, traceIdLow);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (this == object) {
+        return true;
+      } else if (!(object instanceof TraceKey)) {
+        return false;
+      }
+      TraceKey key = (TraceKey) object;
+      return traceIdHigh == key.traceIdHigh && traceIdLow == key.traceIdLow;
+    }
+
+    @Override
+    public int hashCode() {
+      long hash = traceIdHigh * 31 + traceIdLow;
+      return (int) (hash ^ (hash >>> 32));
+    }
+  }
+
+  private static class Trace {
+
+    final long created;
+
+    final List<InstanaSpan> spans = new ArrayList<InstanaSpan>();
+
+    boolean matched;
+
+    Trace(long created) {
+      this.created = created;
+    }
+  }
+
+  private class Shard {
+
+    private final int maxTraces;
+
+    private final LinkedHashMap<TraceKey, Trace> traces = new LinkedHashMap<TraceKey, Trace>();
+
+    private final Map<TraceKey, Boolean> decisions = new LinkedHashMap<TraceKey, Boolean>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<TraceKey, Boolean> eldest) {
+        return size() > DECISIONS_PER_SHARD;
+      }
+    };
+
+    private final TraceKey lookup = new TraceKey();
+
+    Shard(int maxTraces) {
+      this.maxTraces = maxTraces;
+    }
+
+    /**
+     * @return The supplied list of kept spans, or a new list if no list was supplied and spans are kept.
+     */
+    List<InstanaSpan> record(InstanaSpan span, List<InstanaSpan> kept) {
+      TraceKey traceId = lookup.set(span);
+      Boolean decision = decisions.get(traceId);
+      if (decision != null) {
+        return decision ? keep(Collections.singletonList(span), kept) : kept;
+      }
+      Trace trace = traces.get(traceId);
+      if (trace == null) {
+        if (span.isLocalRoot()) { // a trace of a single span
+          return decide(traceId.copy(), matches(span), Collections.singletonList(span), kept);
+        }
+        if (traces.size() == maxTraces) {
+          Iterator<Map.Entry<TraceKey, Trace>> it = traces.entrySet().iterator();
+          Map.Entry<TraceKey, Trace> eldest = it.next();
+          it.remove();
+          kept = decide(eldest.getKey(), eldest.getValue().matched, eldest.getValue().spans, kept);
+        }
+        trace = new Trace(System.nanoTime());
+        traces.put(traceId.copy(), trace);
+      }
+      trace.matched = trace.matched || matches(span);
+      if (trace.spans.size() < maxSpansPerTrace) {
+        trace.spans.add(span);
+      } else if (span.isLocalRoot()) { // the local root is always kept in place of the latest child
+        trace.spans.set(trace.spans.size() - 1, span);
+        droppedSpans.incrementAndGet();
+      } else {
+        droppedSpans.incrementAndGet();
+      }
+      if (span.isLocalRoot()) {
+        traces.remove(traceId);
+        kept = decide(traceId.copy(), trace.matched, trace.spans, kept);
+      }
+      return kept;
+    }
+
+    /**
+     * @return The supplied list of kept spans, or a new list if no list was supplied and spans are kept.
+     */
+    List<InstanaSpan> expire(long now, List<InstanaSpan> kept) {
+      Iterator<Map.Entry<TraceKey, Trace>> it = traces.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<TraceKey, Trace> entry = it.next();
+        if (now - entry.getValue().created < windowNanos) {
+          break; // traces are ordered by their creation
+        }
+        it.remove();
+        kept = decide(entry.getKey(), entry.getValue().matched, entry.getValue().spans, kept);
+      }
+      return kept;
+    }
+
+    private List<InstanaSpan> decide(TraceKey traceId, boolean keep, List<InstanaSpan> spans,
+        List<InstanaSpan> kept) {
+      decisions.put(traceId, keep);
+      if (keep) {
+        keptTraces.incrementAndGet();
+        return keep(spans, kept);
+      }
+      droppedTraces.incrementAndGet();
+      return kept;
+    }
+
+    private List<InstanaSpan> keep(List<InstanaSpan> spans, List<InstanaSpan> kept) {
+      if (kept == null) { // most recorded spans are only buffered such that no list is allocated
+        kept = new ArrayList<InstanaSpan>(spans.size());
+      }
+      kept.addAll(spans);
+      return kept;
+    }
+  }
+}
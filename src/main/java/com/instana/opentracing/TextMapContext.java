@@ -15,8 +15,12 @@ class TextMapContext implements SpanContext {
 
   private final TextMapExtractAdapter baggageItems;
 
-  TextMapContext(TextMapExtract carrier) {
-    this.baggageItems = BaggageItemUtil.filterItems(carrier);
+  TextMapContext(TextMapExtract carrier, PropagationLimits propagationLimits, TracerTelemetry telemetry) {
+    this.baggageItems = BaggageItemUtil.filterItems(carrier, propagationLimits, telemetry);
+  }
+
+  TextMapContext(Map<String, String> baggageItems) {
+    this.baggageItems = new TextMapExtractAdapter(baggageItems);
   }
 
   @Override
@@ -0,0 +1,238 @@
+/*
+ * (c) Copyright IBM Corp. 2022
+ * (c) Copyright Instana Inc.
+ */
+package com.instana.opentracing;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts the operations of a tracer with striped counters. Counting is disabled unless the
+ * {@code instana.opentracing.telemetry} system property is set to {@code basic}, which enables counting, or to
+ * {@code detailed}, which additionally times every 64th injection and extraction of a thread. Counters are only
+ * allocated for the enabled level.
+ */
+class TracerTelemetry implements TracerTelemetryMBean {
+
+  enum Level {
+    OFF, BASIC, DETAILED
+  }
+
+  static final String OBJECT_NAME = "com.instana.opentracing:type=Tracer";
+
+  private static final int SAMPLE_MASK = 63;
+
+  private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+  private final Level level;
+
+  private final boolean enabled, detailed;
+
+  private final PropagationLimits propagationLimits;
+
+  private final StripedCounter startedSpans, noopSpans, injections, extractions, emptyExtractions, filteredBaggageItems;
+
+  private final StripedCounter injectionSamples, injectionNanos, extractionSamples, extractionNanos;
+
+  private static final int INJECTION = 0, EXTRACTION = 1;
+
+  private static final ThreadLocal<int[]> TICKS = new ThreadLocal<int[]>() { // sampled per thread to avoid contention
+    @Override
+    protected int[] initialValue() {
+      return new int[2];
+    }
+  };
+
+  private ObjectName objectName;
+
+  TracerTelemetry(Level level, PropagationLimits propagationLimits) {
+    this.level = level;
+    this.propagationLimits = propagationLimits;
+    enabled = level != Level.OFF;
+    detailed = level == Level.DETAILED;
+    startedSpans = counter(enabled);
+    noopSpans = counter(enabled);
+    injections = counter(enabled);
+    extractions = counter(enabled);
+    emptyExtractions = counter(enabled);
+    filteredBaggageItems = counter(enabled);
+    injectionSamples = counter(detailed);
+    injectionNanos = counter(detailed);
+    extractionSamples = counter(detailed);
+    extractionNanos = counter(detailed);
+  }
+
+  private static StripedCounter counter(boolean enabled) {
+    return enabled ? new StripedCounter() : null;
+  }
+
+  private static long sum(StripedCounter counter) {
+    return counter == null ? 0L : counter.sum();
+  }
+
+  static Level configuredLevel() {
+    String level = System.getProperty("instana.opentracing.telemetry");
+    if (level != null) {
+      for (Level candidate : Level.values()) {
+        if (candidate.name().equalsIgnoreCase(level.trim())) {
+          return candidate;
+        }
+      }
+    }
+    return Level.OFF;
+  }
+
+  void register() {
+    if (!enabled) {
+      return;
+    }
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(OBJECT_NAME);
+      try {
+        server.registerMBean(this, objectName);
+      } catch (InstanceAlreadyExistsException ignored) {
+        objectName = new ObjectName(OBJECT_NAME + ",id=" + INSTANCES.incrementAndGet());
+        server.registerMBean(this, objectName);
+      }
+      this.objectName = objectName;
+    } catch (Exception ignored) {
+    }
+  }
+
+  /**
+   * @return The name under which this telemetry is registered or {@code null} if it is not registered.
+   */
+  ObjectName objectName() {
+    return objectName;
+  }
+
+  void unregister() {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (Exception ignored) {
+    }
+    objectName = null;
+  }
+
+  void onSpan() {
+    if (enabled) {
+      startedSpans.increment();
+    }
+  }
+
+  void onNoopSpan() {
+    if (enabled) {
+      noopSpans.increment();
+    }
+  }
+
+  void onFilteredBaggageItem() {
+    if (enabled) {
+      filteredBaggageItems.increment();
+    }
+  }
+
+  /**
+   * @return A start time if the current injection is sampled for timing or {@code 0}.
+   */
+  long startInjectionTiming() {
+    if (detailed && (++TICKS.get()[INJECTION] & SAMPLE_MASK) == 0) {
+      return System.nanoTime();
+    }
+    return 0L;
+  }
+
+  /**
+   * @return A start time if the current extraction is sampled for timing or {@code 0}.
+   */
+  long startExtractionTiming() {
+    if (detailed && (++TICKS.get()[EXTRACTION] & SAMPLE_MASK) == 0) {
+      return System.nanoTime();
+    }
+    return 0L;
+  }
+
+  void onInjection(long started) {
+    if (enabled) {
+      injections.increment();
+      if (started != 0L) {
+        injectionNanos.add(System.nanoTime() - started);
+        injectionSamples.increment();
+      }
+    }
+  }
+
+  void onExtraction(long started, boolean empty) {
+    if (enabled) {
+      extractions.increment();
+      if (empty) {
+        emptyExtractions.increment();
+      }
+      if (started != 0L) {
+        extractionNanos.add(System.nanoTime() - started);
+        extractionSamples.increment();
+      }
+    }
+  }
+
+  @Override
+  public String getDetailLevel() {
+    return level.name();
+  }
+
+  @Override
+  public long getStartedSpans() {
+    return sum(startedSpans);
+  }
+
+  @Override
+  public long getNoopSpans() {
+    return sum(noopSpans);
+  }
+
+  @Override
+  public long getInjections() {
+    return sum(injections);
+  }
+
+  @Override
+  public long getExtractions() {
+    return sum(extractions);
+  }
+
+  @Override
+  public long getEmptyExtractions() {
+    return sum(emptyExtractions);
+  }
+
+  @Override
+  public long getFilteredBaggageItems() {
+    return sum(filteredBaggageItems);
+  }
+
+  @Override
+  public long getPropagationTruncations() {
+    return propagationLimits.truncations();
+  }
+
+  @Override
+  public long getAverageInjectionNanos() {
+    long samples = sum(injectionSamples);
+    return samples == 0L ? 0L : sum(injectionNanos) / samples;
+  }
+
+  @Override
+  public long getAverageExtractionNanos() {
+    long samples = sum(extractionSamples);
+    return samples == 0L ? 0L : sum(extractionNanos) / samples;
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * (c) Copyright IBM Corp. 2022
+ * (c) Copyright Instana Inc.
+ */
+package com.instana.opentracing;
+
+/**
+ * The self-telemetry of an {@link InstanaTracer} that is registered as {@code com.instana.opentracing:type=Tracer}
+ * if the {@code instana.opentracing.telemetry} system property is set to {@code basic} or {@code detailed}.
+ */
+public interface TracerTelemetryMBean {
+
+  /**
+   * @return The detail level of the telemetry, either {@code BASIC} or {@code DETAILED}.
+   */
+  String getDetailLevel();
+
+  /**
+   * @return The number of spans that were started by the tracer.
+   */
+  long getStartedSpans();
+
+  /**
+   * @return The number of started spans that were no-op spans as the tracer was not active.
+   */
+  long getNoopSpans();
+
+  /**
+   * @return The number of contexts that were injected into a carrier.
+   */
+  long getInjections();
+
+  /**
+   * @return The number of contexts that were extracted from a carrier.
+   */
+  long getExtractions();
+
+  /**
+   * @return The number of extractions that did not yield a context.
+   */
+  long getEmptyExtractions();
+
+  /**
+   * @return The number of carrier entries that were not considered as baggage upon extraction.
+   */
+  long getFilteredBaggageItems();
+
+  /**
+   * @return The number of baggage items that were dropped or trimmed due to propagation limits.
+   */
+  long getPropagationTruncations();
+
+  /**
+   * @return The average duration of a sampled injection in nanoseconds or {@code 0} if timing is not detailed.
+   */
+  long getAverageInjectionNanos();
+
+  /**
+   * @return The average duration of a sampled extraction in nanoseconds or {@code 0} if timing is not detailed.
+   */
+  long getAverageExtractionNanos();
+}
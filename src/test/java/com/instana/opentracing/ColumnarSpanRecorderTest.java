@@ -0,0 +1,181 @@
+/*
+ * (c) Copyright IBM Corp. 2022
+ * (c) Copyright Instana Inc.
+ */
+package com.instana.opentracing;
+
+import io.opentracing.Scope;
+import io.opentracing.ScopeManager;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.propagation.Format;
+import io.opentracing.propagation.TextMapAdapter;
+import io.opentracing.tag.Tags;
+import org.junit.Test;
+
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+public class ColumnarSpanRecorderTest {
+
+  private final ColumnarSpanRecorder recorder = new ColumnarSpanRecorder(2, 2);
+
+  private final SimpleScopeManager scopeManager = new SimpleScopeManager();
+
+  private final InstanaTracer tracer = InstanaTracer.builder(scopeManager).withRecorder(recorder).build();
+
+  @Test public void testRecordsSpanTree() {
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("X-INSTANA-T", "00000000000000ab");
+    headers.put("X-INSTANA-S", "00000000000000cd");
+    Span root = tracer.buildSpan("root")
+        .asChildOf(tracer.extractContext(Format.Builtin.HTTP_HEADERS, new TextMapAdapter(headers)))
+        .withStartTimestamp(1000L)
+        .start();
+    Scope scope = tracer.activateSpan(root);
+    SpanTemplate template = tracer.buildSpanTemplate("child").withTag("component", "jdbc").build();
+    InstanaSpanBuilder spanBuilder = tracer.buildSpan(template);
+    spanBuilder.withTag(Tags.ERROR, true);
+    spanBuilder.start().finish();
+    scope.close();
+    root.finish(1500L);
+
+    ColumnarSpanRecorder.Cursor cursor = recorder.cursor();
+    assertThat(cursor.next(), is(true));
+    assertThat(cursor.operationName(), is("child"));
+    assertThat(cursor.traceIdLow(), is(0xabL));
+    long childParentId = cursor.parentSpanId();
+    assertThat(cursor.tagCount(), is(2));
+    assertThat(cursor.tag("component"), is("jdbc"));
+    assertThat(cursor.tag("error"), is("true"));
+    assertThat(cursor.next(), is(true));
+    assertThat(cursor.operationName(), is("root"));
+    assertThat(cursor.traceIdLow(), is(0xabL));
+    assertThat(cursor.parentSpanId(), is(0xcdL));
+    assertThat(cursor.spanId(), is(childParentId));
+    assertThat(cursor.startMicros(), is(1000L));
+    assertThat(cursor.durationMicros(), is(500L));
+    assertThat(cursor.tagCount(), is(0));
+    assertThat(cursor.next(), is(false));
+  }
+
+  @Test public void testCursorFiltersByOperationName() {
+    tracer.buildSpan("foo").start().finish();
+    tracer.buildSpan("bar").start().finish();
+    tracer.buildSpan("foo").start().finish();
+    ColumnarSpanRecorder.Cursor cursor = recorder.cursor("foo");
+    assertThat(cursor.next(), is(true));
+    assertThat(cursor.next(), is(true));
+    assertThat(cursor.next(), is(false));
+    assertThat(recorder.cursor("qux").next(), is(false));
+  }
+
+  @Test public void testEvictsOldestChunkAndRecyclesChunks() {
+    for (int index = 0; index < 5; index++) {
+      tracer.buildSpan("span-" + index).start().finish();
+    }
+    assertThat(recorder.size(), is(3));
+    assertThat(recorder.evicted(), is(2L));
+    ColumnarSpanRecorder.Cursor cursor = recorder.cursor();
+    assertThat(cursor.next(), is(true));
+    assertThat(cursor.operationName(), is("span-2"));
+    recorder.clear();
+    assertThat(recorder.size(), is(0));
+    assertThat(recorder.cursor().next(), is(false));
+    tracer.buildSpan("span").start().finish();
+    assertThat(recorder.size(), is(1));
+  }
+
+  @Test public void testCursorFailsOnEvictedSpans() {
+    tracer.buildSpan("first").start().finish();
+    tracer.buildSpan("second").start().finish();
+    ColumnarSpanRecorder.Cursor cursor = recorder.cursor();
+    assertThat(cursor.next(), is(true));
+    for (int index = 0; index < 4; index++) {
+      tracer.buildSpan("later").start().finish();
+    }
+    try {
+      cursor.operationName();
+      fail();
+    } catch (ConcurrentModificationException expected) {
+    }
+  }
+
+  @Test public void testCursorFailsAfterClear() {
+    tracer.buildSpan("first").start().finish();
+    ColumnarSpanRecorder.Cursor cursor = recorder.cursor();
+    recorder.clear();
+    tracer.buildSpan("second").start().finish();
+    try {
+      cursor.next();
+      fail();
+    } catch (ConcurrentModificationException expected) {
+    }
+  }
+
+  @Test public void testSpanIsRecordedOnce() {
+    Span span = tracer.buildSpan("span").start();
+    span.finish();
+    span.finish();
+    assertThat(recorder.size(), is(1));
+  }
+
+  @Test public void testCursorIsNotAffectedByLaterRecording() {
+    tracer.buildSpan("first").withTag("foo", "bar").start().finish();
+    ColumnarSpanRecorder.Cursor cursor = recorder.cursor();
+    Tracer.SpanBuilder spanBuilder = tracer.buildSpan("second");
+    for (int index = 0; index < 10; index++) {
+      spanBuilder.withTag("tag-" + index, index);
+    }
+    spanBuilder.start().finish();
+    assertThat(cursor.next(), is(true));
+    assertThat(cursor.operationName(), is("first"));
+    assertThat(cursor.tagKey(0), is("foo"));
+    assertThat(cursor.tagValue(0), is("bar"));
+    assertThat(cursor.next(), is(false));
+  }
+
+  @Test public void testInjectsIdsOfRecordedSpan() {
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("X-INSTANA-T", "00000000000000ab");
+    headers.put("X-INSTANA-S", "00000000000000cd");
+    headers.put("X-INSTANA-L", "1");
+    headers.put("tracestate", "in=00000000000000ab;00000000000000cd,vendor=1");
+    Span span = tracer.buildSpan("span")
+        .asChildOf(tracer.extractContext(Format.Builtin.HTTP_HEADERS, new TextMapAdapter(headers)))
+        .start();
+    Map<String, String> injected = new HashMap<String, String>();
+    tracer.inject(span.context(), Format.Builtin.HTTP_HEADERS, new TextMapAdapter(injected));
+    String spanId = span.context().toSpanId();
+    assertThat(injected.get("x-instana-t"), is("00000000000000ab"));
+    assertThat(injected.get("x-instana-s"), is(spanId));
+    assertThat(injected.get("X-INSTANA-L"), is("1"));
+    assertThat(injected.get("traceparent"), is("00-000000000000000000000000000000ab-" + spanId + "-01"));
+    assertThat(injected.get("tracestate"), is("in=00000000000000ab;" + spanId + ",vendor=1"));
+    assertThat(injected.keySet(), not(hasItem("X-INSTANA-S")));
+  }
+
+  private static class SimpleScopeManager implements ScopeManager {
+
+    private Span active;
+
+    @Override public Scope activate(final Span span) {
+      final Span previous = active;
+      active = span;
+      return new Scope() {
+        @Override public void close() {
+          active = previous;
+        }
+      };
+    }
+
+    @Override public Span activeSpan() {
+      return active;
+    }
+  }
+}
@@ -4,19 +4,27 @@
  */
 package com.instana.opentracing;
 
+import io.opentracing.References;
+import io.opentracing.Span;
 import io.opentracing.SpanContext;
 import io.opentracing.Tracer;
 import io.opentracing.propagation.BinaryAdapters;
 import io.opentracing.propagation.Format;
 import io.opentracing.propagation.TextMap;
+import io.opentracing.tag.Tags;
 import org.hamcrest.Matcher;
 import org.junit.Test;
 
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import static org.hamcrest.CoreMatchers.allOf;
 import static org.hamcrest.CoreMatchers.instanceOf;
@@ -167,6 +175,456 @@ public class InstanaTracerTest {
     assertThat(byteBuffer.get(), is((byte) 0));
   }
 
+  @Test public void testHttpHeaderBlockExtractionKeepsInstanaHeaders() {
+    String block = "GET http://example.com:8080/path HTTP/1.1\r\n"
+        + "Host: example.com\r\n"
+        + "X-INSTANA-T: 123\r\n"
+        + "x-instana-s:456\r\n"
+        + "Authorization: bearer 000\r\n"
+        + "X-Instana-L:  789 \t\r\n"
+        + "TraceParent: abc\n"
+        + "tracestate: xyz\r\n"
+        + "\r\n"
+        + "x-instana-t: body";
+    SpanContext spanContext = tracer.extractContext(InstanaFormat.HTTP_HEADER_BLOCK,
+        new HttpHeaderBlock(block.getBytes(ByteBufferContext.CHARSET)));
+    assertThat(spanContext.baggageItems(),
+        containsInAnyOrder(isEntry("x-instana-t", "123"), isEntry("x-instana-s", "456"), isEntry("x-instana-l", "789"),
+            isEntry("traceparent", "abc"), isEntry("tracestate", "xyz")));
+  }
+
+  @Test public void testHttpHeaderBlockExtractionMatchesHttpHeaders() {
+    MapTextMap headers = new MapTextMap();
+    headers.put("x-instana-t", "123");
+    headers.put("x-instana-s", "456");
+    SpanContext expected = tracer.extractContext(Format.Builtin.HTTP_HEADERS, headers);
+    SpanContext spanContext = tracer.extractContext(InstanaFormat.HTTP_HEADER_BLOCK,
+        new HttpHeaderBlock("x-instana-t: 123\r\nx-instana-s: 456\r\n".getBytes(ByteBufferContext.CHARSET)));
+    assertThat(spanContext, instanceOf(expected.getClass()));
+    assertThat(spanContext.toTraceId(), is(expected.toTraceId()));
+    assertThat(spanContext.toSpanId(), is(expected.toSpanId()));
+    assertThat(spanContext.baggageItems(),
+        containsInAnyOrder(isEntry("x-instana-t", "123"), isEntry("x-instana-s", "456")));
+    assertThat(tracer.extract(InstanaFormat.HTTP_HEADER_BLOCK,
+        new HttpHeaderBlock("x-instana-t: 123\r\nx-instana-s: 456\r\n".getBytes(ByteBufferContext.CHARSET))),
+        is(tracer.extract(Format.Builtin.HTTP_HEADERS, headers)));
+  }
+
+  @Test public void testHttpHeaderBlockExtractionRespectsRange() {
+    byte[] bytes = "x-instana-t: 123\r\nx-instana-s: 456\r\n".getBytes(ByteBufferContext.CHARSET);
+    SpanContext spanContext = tracer.extractContext(InstanaFormat.HTTP_HEADER_BLOCK,
+        new HttpHeaderBlock(bytes, 18, bytes.length - 18));
+    assertThat(spanContext.baggageItems(), contains(isEntry("x-instana-s", "456")));
+  }
+
+  @Test public void testHttpHeaderBlockExtractionFromDirectBuffer() {
+    byte[] bytes = "foo: bar\r\nx-instana-t: 123\r\n\r\n".getBytes(ByteBufferContext.CHARSET);
+    ByteBuffer byteBuffer = ByteBuffer.allocateDirect(bytes.length + 2);
+    byteBuffer.put((byte) 0).put(bytes).put((byte) 0);
+    byteBuffer.position(1).limit(1 + bytes.length);
+    SpanContext spanContext = tracer.extractContext(InstanaFormat.HTTP_HEADER_BLOCK, new HttpHeaderBlock(byteBuffer));
+    assertThat(spanContext.baggageItems(), contains(isEntry("x-instana-t", "123")));
+    assertThat(byteBuffer.position(), is(1));
+  }
+
+  @Test public void testFollowsFromReferencesAreKeptAsLinks() {
+    InstanaSpanBuilder spanBuilder = (InstanaSpanBuilder) tracer.buildSpan("batch");
+    for (int index = 1; index <= 3; index++) {
+      MapTextMap textMap = new MapTextMap();
+      textMap.put("X-Instana-T", "a" + index);
+      textMap.put("X-Instana-S", "b" + index);
+      spanBuilder.addReference(References.FOLLOWS_FROM, tracer.extractContext(Format.Builtin.TEXT_MAP, textMap));
+    }
+    InstanaSpan span = (InstanaSpan) spanBuilder.doStart(null);
+    assertThat(span.getBaggageItem("X-Instana-T"), is("a1"));
+    assertThat(span.links().size(), is(3));
+    for (int index = 0; index < 3; index++) {
+      assertThat(span.links().traceIdHigh(index), is(0L));
+      assertThat(span.links().traceIdLow(index), is(0xa1L + index));
+      assertThat(span.links().spanId(index), is(0xb1L + index));
+    }
+    assertThat(span.links().overflow(), is(0));
+  }
+
+  @Test public void testLinksAreAddedFromCarriers() {
+    MapTextMap textMap = new MapTextMap();
+    textMap.put("traceparent", "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01");
+    String block = "x-instana-t: 0af7651916cd43dd8448eb211c80319d\r\nx-instana-s: b7ad6b7169203332\r\n"
+        + "traceparent: 00-0000000000000000000000000000000f-000000000000000f-01\r\n\r\n";
+    InstanaSpan span = (InstanaSpan) ((InstanaSpanBuilder) tracer.buildSpan("batch")).addLink(textMap)
+        .addLink(new MapTextMap())
+        .addLink(new HttpHeaderBlock(block.getBytes(ByteBufferContext.CHARSET)))
+        .doStart(null);
+    assertThat(span.links().size(), is(2));
+    assertThat(span.links().traceIdHigh(0), is(0x0af7651916cd43ddL));
+    assertThat(span.links().traceIdLow(0), is(0x8448eb211c80319cL));
+    assertThat(span.links().spanId(0), is(0xb7ad6b7169203331L));
+    assertThat(span.links().traceIdHigh(1), is(0x0af7651916cd43ddL));
+    assertThat(span.links().traceIdLow(1), is(0x8448eb211c80319dL));
+    assertThat(span.links().spanId(1), is(0xb7ad6b7169203332L));
+  }
+
+  @Test public void testLinksAreNotSharedWithStartedSpans() {
+    String block = "traceparent: 00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01\r\n\r\n";
+    InstanaSpanBuilder spanBuilder = ((InstanaSpanBuilder) tracer.buildSpan("batch"))
+        .addLink(new HttpHeaderBlock(block.getBytes(ByteBufferContext.CHARSET)));
+    InstanaSpan span = (InstanaSpan) spanBuilder.doStart(null);
+    spanBuilder.addLink(new HttpHeaderBlock(block.getBytes(ByteBufferContext.CHARSET)));
+    assertThat(span.links().size(), is(1));
+    assertThat(span.links().traceIdLow(0), is(0x8448eb211c80319cL));
+    assertThat(span.links().spanId(0), is(0xb7ad6b7169203331L));
+    assertThat(((InstanaSpan) spanBuilder.doStart(null)).links().size(), is(2));
+  }
+
+  @Test public void testLinksOverflow() {
+    SpanLinks links = new SpanLinks(2);
+    for (int index = 1; index <= 5; index++) {
+      links.add(0L, index, index);
+    }
+    assertThat(links.size(), is(2));
+    assertThat(links.overflow(), is(3));
+    assertThat(links.spanId(1), is(2L));
+  }
+
+  @Test public void testLinksAreCappedPerTracer() {
+    InstanaTracer tracer = InstanaTracer.builder(new InactiveScopeManager()).withMaxLinks(1).build();
+    String block = "traceparent: 00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01\r\n\r\n";
+    InstanaSpan span = (InstanaSpan) ((InstanaSpanBuilder) tracer.buildSpan("batch"))
+        .addLink(new HttpHeaderBlock(block.getBytes(ByteBufferContext.CHARSET)))
+        .addLink(new HttpHeaderBlock(block.getBytes(ByteBufferContext.CHARSET)))
+        .doStart(null);
+    assertThat(span.links().size(), is(1));
+    assertThat(span.links().overflow(), is(1));
+  }
+
+  @Test public void testDeferredTagsAreNotComputedForNoopSpans() {
+    CountingTagSupplier supplier = new CountingTagSupplier(0L);
+    ((InstanaSpanBuilder) tracer.buildSpan("noop")).withDeferredTag("foo", supplier).start().finish();
+    assertThat(supplier.invocations, is(0));
+  }
+
+  @Test public void testDeferredTagsAreComputedOnFinishWithoutRecorder() {
+    CountingTagSupplier supplier = new CountingTagSupplier(0L);
+    Span span = ((InstanaSpanBuilder) tracer.buildSpan("agent")).withDeferredTag("foo", supplier).doStart(null);
+    assertThat(supplier.invocations, is(0));
+    span.finish();
+    assertThat(supplier.invocations, is(1));
+  }
+
+  @Test public void testDeferredTagsAreNotComputedOnFinishForUnsampledSpans() {
+    MapTextMap textMap = new MapTextMap();
+    textMap.put("x-instana-l", "0");
+    CountingTagSupplier supplier = new CountingTagSupplier(0L);
+    InstanaSpanBuilder spanBuilder = (InstanaSpanBuilder) tracer.buildSpan("unsampled");
+    spanBuilder.asChildOf(tracer.extractContext(Format.Builtin.TEXT_MAP, textMap));
+    spanBuilder.withDeferredTag("foo", supplier).doStart(null).finish(1000L);
+    assertThat(supplier.invocations, is(0));
+  }
+
+  @Test public void testDeferredTagsAreNotComputedForUnsampledSpans() {
+    testDeferredTagsAreNotComputedForUnsampledSpans("x-instana-l");
+  }
+
+  @Test public void testDeferredTagsAreNotComputedForUnsampledSpansWithUpperCaseHeader() {
+    testDeferredTagsAreNotComputedForUnsampledSpans("X-INSTANA-L");
+  }
+
+  private void testDeferredTagsAreNotComputedForUnsampledSpans(String header) {
+    MapTextMap textMap = new MapTextMap();
+    textMap.put(header, "0");
+    CountingTagSupplier supplier = new CountingTagSupplier(0L);
+    InstanaSpanBuilder spanBuilder = (InstanaSpanBuilder) tracer.buildSpan("unsampled");
+    spanBuilder.asChildOf(tracer.extractContext(Format.Builtin.TEXT_MAP, textMap));
+    InstanaSpan span = (InstanaSpan) spanBuilder.withDeferredTag("foo", supplier).doStart(null);
+    span.resolveDeferredTags();
+    assertThat(supplier.invocations, is(0));
+  }
+
+  @Test public void testDeferredTagsAreComputedOnceWithinBudget() {
+    CountingTagSupplier first = new CountingTagSupplier(0L), second = new CountingTagSupplier(0L);
+    InstanaSpan span = (InstanaSpan) ((InstanaSpanBuilder) tracer.buildSpan("sampled"))
+        .withDeferredTag("first", first)
+        .doStart(null);
+    span.setDeferredTag("second", second);
+    span.resolveDeferredTags();
+    span.resolveDeferredTags();
+    assertThat(first.invocations, is(1));
+    assertThat(second.invocations, is(1));
+  }
+
+  @Test public void testDeferredTagsAreSkippedAfterExceededBudget() {
+    CountingTagSupplier slow = new CountingTagSupplier(5L), skipped = new CountingTagSupplier(0L);
+    InstanaSpan span = (InstanaSpan) ((InstanaSpanBuilder) tracer.buildSpan("slow"))
+        .withDeferredTag("slow", slow, 1, TimeUnit.MILLISECONDS)
+        .withDeferredTag("skipped", skipped)
+        .doStart(null);
+    span.resolveDeferredTags();
+    assertThat(slow.invocations, is(1));
+    assertThat(skipped.invocations, is(0));
+  }
+
+  @Test public void testSpansShareTemplate() {
+    SpanTemplate template = tracer.buildSpanTemplate("db.query")
+        .withTag("component", "jdbc")
+        .withTag("db.type", "postgres")
+        .withTag(Tags.SPAN_KIND, Tags.SPAN_KIND_CLIENT)
+        .build();
+    InstanaSpanBuilder spanBuilder = tracer.buildSpan(template);
+    spanBuilder.withTag("db.statement", "select 1");
+    InstanaSpan first = (InstanaSpan) spanBuilder.doStart(null);
+    InstanaSpan second = (InstanaSpan) tracer.buildSpan(template).doStart(null);
+    assertThat(first.template(), sameInstance(template));
+    assertThat(second.template(), sameInstance(template));
+    assertThat(template.operationName(), is("db.query"));
+    assertThat(template.tags().size(), is(3));
+    assertThat(template.tags().get("span.kind"), is("client"));
+  }
+
+  @Test public void testTemplateTagsAreReported() {
+    final Map<String, String> reported = new HashMap<String, String>();
+    InstanaTracer tracer = InstanaTracer.builder(new InactiveScopeManager()).withRecorder(new SpanRecorder() {
+      @Override
+      public void record(InstanaSpan span) {
+        reported.putAll(span.tags());
+      }
+    }).build();
+    SpanTemplate template = tracer.buildSpanTemplate("db.query")
+        .withTag("component", "jdbc")
+        .withTag("db.type", "postgres")
+        .build();
+    tracer.buildSpan(template).withTag("db.type", "mysql").withTag("db.statement", "select 1").start().finish();
+    assertThat(reported.size(), is(3));
+    assertThat(reported, hasEntry("component", "jdbc"));
+    assertThat(reported, hasEntry("db.type", "mysql"));
+    assertThat(reported, hasEntry("db.statement", "select 1"));
+  }
+
+  @Test(expected = UnsupportedOperationException.class) public void testTemplateIsImmutable() {
+    tracer.buildSpanTemplate("db.query").withTag("component", "jdbc").build().tags().put("foo", "bar");
+  }
+
+  @Test public void testBaggageIsLimited() {
+    PropagationLimits propagationLimits = new PropagationLimits(2, 4, 9);
+    InstanaTracer tracer = InstanaTracer.builder(new InactiveScopeManager()).withPropagationLimits(propagationLimits)
+        .build();
+    Span span = ((InstanaSpanBuilder) tracer.buildSpan("limited")).doStart(null);
+    span.setBaggageItem("a", "12345"); // value too large
+    span.setBaggageItem("b", "1234");
+    span.setBaggageItem("c", "1234"); // total too large
+    span.setBaggageItem("d", "1");
+    span.setBaggageItem("e", "1"); // too many entries
+    span.setBaggageItem("d", "2"); // replacement
+    assertThat(span.context().baggageItems(), containsInAnyOrder(isEntry("b", "1234"), isEntry("d", "2")));
+    assertThat(propagationLimits.truncations(), is(3L));
+  }
+
+  @Test public void testInjectionIsLimited() {
+    PropagationLimits propagationLimits = new PropagationLimits(1, 100, 100);
+    InstanaTracer tracer = InstanaTracer.builder(new InactiveScopeManager()).withPropagationLimits(propagationLimits)
+        .build();
+    MapSpanContext spanContext = new MapSpanContext();
+    spanContext.map.put("foo", "bar");
+    spanContext.map.put("qux", "baz");
+    MapTextMap textMap = new MapTextMap();
+    tracer.inject(spanContext, Format.Builtin.TEXT_MAP, textMap);
+    assertThat(textMap.map.size(), is(1));
+    assertThat(propagationLimits.truncations(), is(1L));
+  }
+
+  @Test public void testPropagationHeadersAreNeverLimited() {
+    PropagationLimits propagationLimits = new PropagationLimits(1, 4, 9);
+    InstanaTracer tracer = InstanaTracer.builder(new InactiveScopeManager()).withPropagationLimits(propagationLimits)
+        .build();
+    MapTextMap textMap = new MapTextMap();
+    textMap.put("X-Instana-T", "0af7651916cd43dd8448eb211c80319c");
+    textMap.put("X-Instana-S", "b7ad6b7169203331");
+    textMap.put("X-Instana-L", "1");
+    textMap.put("traceparent", "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01");
+    SpanContext spanContext = tracer.extractContext(Format.Builtin.HTTP_HEADERS, textMap);
+    assertThat(spanContext.baggageItems(),
+        containsInAnyOrder(isEntry("X-Instana-T", "0af7651916cd43dd8448eb211c80319c"),
+        isEntry("X-Instana-S", "b7ad6b7169203331"), isEntry("X-Instana-L", "1"),
+        isEntry("traceparent", "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01")));
+    Span span = ((InstanaSpanBuilder) tracer.buildSpan("limited").asChildOf(spanContext)).doStart(null);
+    span.setBaggageItem("foo", "1");
+    assertThat(span.getBaggageItem("X-Instana-T"), is("0af7651916cd43dd8448eb211c80319c"));
+    assertThat(span.getBaggageItem("foo"), nullValue());
+
+    MapSpanContext mapSpanContext = new MapSpanContext();
+    mapSpanContext.map.put("foo", "1");
+    mapSpanContext.map.put("x-instana-t", "0af7651916cd43dd8448eb211c80319c");
+    mapSpanContext.map.put("x-instana-s", "b7ad6b7169203331");
+    MapTextMap injected = new MapTextMap();
+    tracer.inject(mapSpanContext, Format.Builtin.HTTP_HEADERS, injected);
+    assertThat(injected.map.keySet(), containsInAnyOrder("x-instana-t", "x-instana-s"));
+    assertThat(propagationLimits.truncations(), is(2L));
+  }
+
+  @Test public void testExtractionTrimsTracestate() {
+    StringBuilder tracestate = new StringBuilder();
+    for (int index = 0; index < 40; index++) {
+      tracestate.append("v").append(index).append("=x,");
+    }
+    tracestate.append("in=123;456");
+    MapTextMap textMap = new MapTextMap();
+    textMap.put("tracestate", tracestate.toString());
+    SpanContext spanContext = tracer.extractContext(Format.Builtin.TEXT_MAP, textMap);
+    String trimmed = spanContext.baggageItems().iterator().next().getValue();
+    String[] members = trimmed.split(",");
+    assertThat(members.length, is(32));
+    assertThat(members[0], is("in=123;456"));
+    assertThat(members[1], is("v0=x"));
+    assertThat(members[31], is("v30=x"));
+  }
+
+  @Test public void testTracestateDropsLongMembersFirst() {
+    StringBuilder tracestate = new StringBuilder("large=");
+    for (int index = 0; index < 300; index++) {
+      tracestate.append('x');
+    }
+    StringBuilder expected = new StringBuilder();
+    for (int index = 0; index < 10; index++) {
+      expected.append(expected.length() == 0 ? "" : ",").append("vendor").append(index).append("=0123456789abcdef");
+    }
+    tracestate.append(',').append(expected);
+    String trimmed = new PropagationLimits(1, 1024, 1024).trimTracestate(tracestate.toString());
+    assertThat(trimmed, is(expected.toString()));
+  }
+
+  @Test public void testTracestateDropsOversizedInstanaMember() {
+    StringBuilder tracestate = new StringBuilder("in=");
+    for (int index = 0; index < 600; index++) {
+      tracestate.append('x');
+    }
+    tracestate.append(",vendor=0123456789abcdef");
+    PropagationLimits propagationLimits = new PropagationLimits(1, 1024, 1024);
+    assertThat(propagationLimits.trimTracestate(tracestate.toString()), is("vendor=0123456789abcdef"));
+    assertThat(propagationLimits.truncations(), is(1L));
+  }
+
+  @Test public void testInheritedBaggageIsLimited() {
+    PropagationLimits propagationLimits = new PropagationLimits(2, 100, 100);
+    InstanaTracer tracer = InstanaTracer.builder(new InactiveScopeManager()).withPropagationLimits(propagationLimits)
+        .build();
+    MapSpanContext spanContext = new MapSpanContext();
+    spanContext.map.put("a", "1");
+    spanContext.map.put("b", "2");
+    spanContext.map.put("c", "3");
+    InstanaSpanBuilder spanBuilder = (InstanaSpanBuilder) tracer.buildSpan("child");
+    spanBuilder.asChildOf(spanContext);
+    Span span = spanBuilder.doStart(null);
+    assertThat(span.context().baggageItems(), containsInAnyOrder(isEntry("a", "1"), isEntry("b", "2")));
+    assertThat(propagationLimits.truncations(), is(1L));
+    InstanaSpanBuilder grandchildBuilder = (InstanaSpanBuilder) tracer.buildSpan("grandchild");
+    grandchildBuilder.asChildOf(span);
+    assertThat(grandchildBuilder.doStart(null).context().baggageItems(),
+        containsInAnyOrder(isEntry("a", "1"), isEntry("b", "2")));
+    assertThat(propagationLimits.truncations(), is(1L));
+  }
+
+  @Test public void testTelemetryIsRegisteredAndCounts() throws Exception {
+    TracerTelemetry telemetry = new TracerTelemetry(TracerTelemetry.Level.DETAILED, PropagationLimits.DEFAULT);
+    InstanaTracer tracer = InstanaTracer.builder(new InactiveScopeManager()).withTelemetry(telemetry).build();
+    try {
+      tracer.buildSpan("noop").start();
+      ((InstanaSpanBuilder) tracer.buildSpan("span")).doStart(null);
+      MapTextMap textMap = new MapTextMap();
+      textMap.put("foo", "bar");
+      textMap.put("x-instana-t", "123");
+      for (int index = 0; index < 64; index++) {
+        assertThat(tracer.extract(Format.Builtin.TEXT_MAP, textMap), nullValue());
+        tracer.inject(new MapSpanContext(), Format.Builtin.TEXT_MAP, new MapTextMap());
+      }
+      tracer.extract(InstanaFormat.HTTP_HEADER_BLOCK,
+          new HttpHeaderBlock("Host: example.com\r\nx-instana-t: 123\r\n".getBytes(ByteBufferContext.CHARSET)));
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = telemetry.objectName();
+      assertThat(server.getAttribute(objectName, "DetailLevel"), is((Object) "DETAILED"));
+      assertThat(server.getAttribute(objectName, "NoopSpans"), is((Object) 1L));
+      assertThat(server.getAttribute(objectName, "StartedSpans"), is((Object) 1L));
+      assertThat(server.getAttribute(objectName, "Extractions"), is((Object) 65L));
+      assertThat(server.getAttribute(objectName, "EmptyExtractions"), is((Object) 65L));
+      assertThat(server.getAttribute(objectName, "FilteredBaggageItems"), is((Object) 65L));
+      assertThat(server.getAttribute(objectName, "Injections"), is((Object) 64L));
+      assertThat((Long) server.getAttribute(objectName, "AverageInjectionNanos"), greaterThan(0L));
+      assertThat((Long) server.getAttribute(objectName, "AverageExtractionNanos"), greaterThan(0L));
+    } finally {
+      tracer.close();
+    }
+    assertThat(ManagementFactory.getPlatformMBeanServer()
+        .queryNames(new ObjectName(TracerTelemetry.OBJECT_NAME + ",*"), null), empty());
+  }
+
+  @Test public void testTelemetryIsDisabledByDefault() throws Exception {
+    assertThat(System.getProperty("instana.opentracing.telemetry"), nullValue());
+    assertThat(TracerTelemetry.configuredLevel(), is(TracerTelemetry.Level.OFF));
+    InstanaTracer tracer = InstanaTracer.builder(new InactiveScopeManager()).build();
+    tracer.buildSpan("noop").start();
+    assertThat(ManagementFactory.getPlatformMBeanServer()
+        .queryNames(new ObjectName(TracerTelemetry.OBJECT_NAME + ",*"), null), empty());
+  }
+
+  @Test public void testDisabledTelemetryDoesNotCount() {
+    TracerTelemetry telemetry = new TracerTelemetry(TracerTelemetry.Level.OFF, PropagationLimits.DEFAULT);
+    InstanaTracer tracer = InstanaTracer.builder(new InactiveScopeManager()).withTelemetry(telemetry).build();
+    tracer.buildSpan("noop").start();
+    assertThat(telemetry.getNoopSpans(), is(0L));
+    assertThat(telemetry.getAverageInjectionNanos(), is(0L));
+    assertThat(telemetry.objectName(), nullValue());
+  }
+
+  @Test public void testShortChildSpansAreCollapsedIntoParent() {
+    ColumnarSpanRecorder recorder = new ColumnarSpanRecorder();
+    InstanaTracer tracer = InstanaTracer.builder(new InactiveScopeManager()).withRecorder(recorder)
+        .withCollapseThreshold(50L, TimeUnit.MICROSECONDS).build();
+    Span root = tracer.buildSpan("root").withStartTimestamp(1000L).start();
+    tracer.buildSpan("cache").asChildOf(root).withStartTimestamp(1000L).start().finish(1010L);
+    tracer.buildSpan("cache").asChildOf(root).withStartTimestamp(1020L).start().finish(1030L);
+    tracer.buildSpan("db").asChildOf(root).withStartTimestamp(1100L).start().finish(1200L);
+    tracer.buildSpan("cache").asChildOf(root).withTag(Tags.ERROR, true).withStartTimestamp(1300L).start()
+        .finish(1301L);
+    root.finish(2000L);
+    tracer.buildSpan("late").asChildOf(root).withStartTimestamp(2000L).start().finish(2001L);
+
+    assertThat(recorder.size(), is(4));
+    ColumnarSpanRecorder.Cursor cursor = recorder.cursor("root");
+    assertThat(cursor.next(), is(true));
+    assertThat(cursor.tag("collapsed.cache.count"), is("2"));
+    assertThat(cursor.tag("collapsed.cache.micros"), is("20"));
+    assertThat(recorder.cursor("db").next(), is(true));
+    assertThat(recorder.cursor("late").next(), is(true));
+  }
+
+  @Test public void testSpansWithRecordedChildrenAreNotCollapsed() {
+    ColumnarSpanRecorder recorder = new ColumnarSpanRecorder();
+    InstanaTracer tracer = InstanaTracer.builder(new InactiveScopeManager()).withRecorder(recorder)
+        .withCollapseThreshold(50L, TimeUnit.MICROSECONDS).build();
+    InstanaSpan root = (InstanaSpan) tracer.buildSpan("root").withStartTimestamp(1000L).start();
+    InstanaSpan child = (InstanaSpan) tracer.buildSpan("child").asChildOf((Span) root).withStartTimestamp(1000L).start();
+    InstanaSpan other = (InstanaSpan) tracer.buildSpan("other").asChildOf((Span) root).withStartTimestamp(1000L).start();
+    tracer.buildSpan("grand").asChildOf((Span) child).withTag(Tags.ERROR, true).withStartTimestamp(1001L).start()
+        .finish(1002L);
+    child.finish(1010L);
+    other.finish(1010L);
+    tracer.buildSpan("late").asChildOf((Span) other).withTag(Tags.ERROR, true).withStartTimestamp(1011L).start()
+        .finish(1012L);
+    root.finish(2000L);
+
+    ColumnarSpanRecorder.Cursor cursor = recorder.cursor("child");
+    assertThat(cursor.next(), is(true));
+    assertThat(cursor.spanId(), is(child.spanId()));
+    cursor = recorder.cursor("grand");
+    assertThat(cursor.next(), is(true));
+    assertThat(cursor.parentSpanId(), is(child.spanId()));
+    cursor = recorder.cursor("late");
+    assertThat(cursor.next(), is(true));
+    assertThat(cursor.parentSpanId(), is(root.spanId()));
+    cursor = recorder.cursor("root");
+    assertThat(cursor.next(), is(true));
+    assertThat(cursor.tag("collapsed.other.count"), is("1"));
+    assertThat(cursor.tag("collapsed.child.count"), nullValue());
+  }
+
   @Test public void testServiceLoader() {
     Iterator<Tracer> services = ServiceLoader.load(Tracer.class).iterator();
     assertThat(services.hasNext(), is(true));
@@ -191,6 +649,29 @@ public class InstanaTracerTest {
     }
   }
 
+  private static class CountingTagSupplier implements TagSupplier<String> {
+
+    final long sleepMillis;
+
+    int invocations;
+
+    CountingTagSupplier(long sleepMillis) {
+      this.sleepMillis = sleepMillis;
+    }
+
+    @Override public String get() {
+      invocations++;
+      if (sleepMillis > 0L) {
+        try {
+          Thread.sleep(sleepMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return "value";
+    }
+  }
+
   private static class MapTextMap implements TextMap {
 
     final Map<String, String> map = new HashMap<String, String>();
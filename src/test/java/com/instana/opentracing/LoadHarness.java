@@ -0,0 +1,383 @@
+/*
+ * (c) Copyright IBM Corp. 2022
+ * (c) Copyright Instana Inc.
+ */
+package com.instana.opentracing;
+
+import io.opentracing.Scope;
+import io.opentracing.ScopeManager;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.propagation.Format;
+import io.opentracing.propagation.TextMapAdapter;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An end-to-end load harness that drives the tracer like a gateway: every request extracts a context from a realistic
+ * header carrier, builds a span tree through the scope manager, injects the context of every leaf span into an outbound
+ * carrier and finishes all spans. Requests are issued by worker threads at an open-loop target rate. Response times are
+ * measured from the intended start of a request which corrects for coordinated omission, whereas service times are
+ * measured from its actual start.
+ * <p>
+ * Run with {@code mvn -Pload-test test -Dload.args="--rate=50000 --threads=8"}. Supported arguments are
+ * {@code --threads}, {@code --rate} (requests per second), {@code --warmup} and {@code --duration} (seconds),
+ * {@code --depth} and {@code --fanout} (of the span tree) and {@code --headers} (per inbound carrier).
+ */
+public class LoadHarness {
+
+  private static final long PARK_THRESHOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+  private final InstanaTracer tracer;
+
+  private final int threads, rate, depth, fanout, headers;
+
+  private final long warmupNanos, durationNanos;
+
+  LoadHarness(Map<String, String> arguments) {
+    threads = integer(arguments, "threads", Runtime.getRuntime().availableProcessors());
+    rate = integer(arguments, "rate", 50000);
+    depth = integer(arguments, "depth", 3);
+    fanout = integer(arguments, "fanout", 3);
+    headers = integer(arguments, "headers", 40);
+    warmupNanos = TimeUnit.SECONDS.toNanos(integer(arguments, "warmup", 10));
+    durationNanos = TimeUnit.SECONDS.toNanos(integer(arguments, "duration", 30));
+    tracer = new InstanaTracer(new ThreadLocalScopeManager());
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> arguments = new HashMap<String, String>();
+    for (String arg : args) {
+      for (String argument : arg.trim().split("\\s+")) {
+        if (argument.startsWith("--") && argument.indexOf('=') != -1) {
+          arguments.put(argument.substring(2, argument.indexOf('=')), argument.substring(argument.indexOf('=') + 1));
+        } else if (argument.length() > 0) {
+          throw new IllegalArgumentException("Expected an argument of the form --key=value: " + argument);
+        }
+      }
+    }
+    new LoadHarness(arguments).run();
+  }
+
+  void run() throws InterruptedException {
+    System.out.printf(Locale.ROOT, "Running %d threads at %d requests/s with span trees of depth %d and fan-out %d "
+        + "(%d spans per request) for %ds after a warmup of %ds%n", threads, rate, depth, fanout, spansPerRequest(),
+        TimeUnit.NANOSECONDS.toSeconds(durationNanos), TimeUnit.NANOSECONDS.toSeconds(warmupNanos));
+    long intervalNanos = Math.max(1L, TimeUnit.SECONDS.toNanos(threads) / rate);
+    long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+    Worker[] workers = new Worker[threads];
+    CountDownLatch warmedUp = new CountDownLatch(threads), finished = new CountDownLatch(threads);
+    for (int index = 0; index < threads; index++) {
+      // offset the schedule of every worker to spread requests evenly over the interval
+      workers[index] = new Worker(carrier(index), start + index * intervalNanos / threads, intervalNanos,
+          warmedUp, finished);
+      Thread thread = new Thread(workers[index], "load-harness-" + index);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    warmedUp.await();
+    long gcCount = 0L, gcMillis = 0L;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      gcCount -= gc.getCollectionCount();
+      gcMillis -= gc.getCollectionTime();
+    }
+    finished.await();
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      gcCount += gc.getCollectionCount();
+      gcMillis += gc.getCollectionTime();
+    }
+    Histogram responseTimes = new Histogram(), serviceTimes = new Histogram();
+    long requests = 0L, allocatedBytes = 0L, ended = start + warmupNanos + durationNanos;
+    for (Worker worker : workers) {
+      responseTimes.add(worker.responseTimes);
+      serviceTimes.add(worker.serviceTimes);
+      requests += worker.requests;
+      if (allocatedBytes >= 0L) {
+        allocatedBytes = worker.allocatedBytes < 0L ? -1L : allocatedBytes + worker.allocatedBytes;
+      }
+      ended = Math.max(ended, worker.ended);
+    }
+    // a saturated worker continues until it has issued all scheduled requests
+    double seconds = (ended - start - warmupNanos) / 1e9;
+    System.out.printf(Locale.ROOT, "Throughput: %.0f requests/s, %.0f spans/s%n", requests / seconds,
+        requests * spansPerRequest() / seconds);
+    responseTimes.print("Response time (corrected for coordinated omission)");
+    serviceTimes.print("Service time");
+    if (allocatedBytes >= 0L) {
+      System.out.printf(Locale.ROOT, "Allocation: %.1f MB/s, %d bytes/request%n", allocatedBytes / seconds / 1e6,
+          requests == 0L ? 0L : allocatedBytes / requests);
+    } else {
+      System.out.println("Allocation: not supported by this JVM");
+    }
+    System.out.printf(Locale.ROOT, "GC: %d collections, %d ms (%.2f%% of wall time)%n", gcCount, gcMillis,
+        gcMillis / 10d / seconds);
+  }
+
+  private int spansPerRequest() {
+    int spans = 1, level = 1;
+    for (int index = 1; index < depth; index++) {
+      level *= fanout;
+      spans += level;
+    }
+    return spans;
+  }
+
+  private Map<String, String> carrier(int index) {
+    Map<String, String> carrier = new LinkedHashMap<String, String>();
+    carrier.put("X-INSTANA-T", String.format(Locale.ROOT, "%016x", 0x1000L + index));
+    carrier.put("X-INSTANA-S", String.format(Locale.ROOT, "%016x", 0x2000L + index));
+    carrier.put("X-INSTANA-L", "1");
+    carrier.put("traceparent", String.format(Locale.ROOT, "00-%032x-%016x-01", 0x1000L + index, 0x2000L + index));
+    carrier.put("tracestate", String.format(Locale.ROOT, "in=%016x;%016x,congo=t61rcWkgMzE", 0x1000L + index,
+        0x2000L + index));
+    String[] common = {"Host", "User-Agent", "Accept", "Accept-Encoding", "Accept-Language", "Connection",
+        "Content-Type", "Content-Length", "Cookie", "Authorization", "Cache-Control", "Origin", "Referer",
+        "X-Forwarded-For", "X-Forwarded-Proto", "X-Forwarded-Host", "X-Request-Id", "X-Real-Ip", "Via", "Pragma"};
+    for (int header = 0; carrier.size() < headers; header++) {
+      String name = header < common.length ? common[header] : "X-Custom-Header-" + header;
+      carrier.put(name, "value-" + header + "-lorem-ipsum-dolor-sit-amet-consectetur-adipiscing-elit");
+    }
+    return carrier;
+  }
+
+  private static int integer(Map<String, String> arguments, String key, int defaultValue) {
+    String value = arguments.get(key);
+    int integer = value == null ? defaultValue : Integer.parseInt(value);
+    if (integer < 0 || (integer == 0 && !key.equals("warmup"))) {
+      throw new IllegalArgumentException("Expected a positive value for " + key + ": " + integer);
+    }
+    return integer;
+  }
+
+  private class Worker implements Runnable {
+
+    private final TextMapAdapter inbound;
+
+    private final Map<String, String> outbound = new HashMap<String, String>();
+
+    private final long start, intervalNanos;
+
+    private final CountDownLatch warmedUp, finished;
+
+    private final String[] operationNames;
+
+    final Histogram responseTimes = new Histogram(), serviceTimes = new Histogram();
+
+    long requests, allocatedBytes, ended;
+
+    Worker(Map<String, String> inbound, long start, long intervalNanos, CountDownLatch warmedUp,
+        CountDownLatch finished) {
+      this.inbound = new TextMapAdapter(inbound);
+      this.start = start;
+      this.intervalNanos = intervalNanos;
+      this.warmedUp = warmedUp;
+      this.finished = finished;
+      operationNames = new String[depth];
+      for (int level = 0; level < depth; level++) {
+        operationNames[level] = "operation-" + level;
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        long measureFrom = start + warmupNanos, measureTo = measureFrom + durationNanos, intended = start;
+        boolean measuring = false;
+        while (intended < measureTo) {
+          long now = System.nanoTime();
+          if (now < intended) {
+            // park only well ahead of the intended start as parking tends to overshoot, otherwise yield
+            if (intended - now > PARK_THRESHOLD_NANOS) {
+              LockSupport.parkNanos(intended - now - PARK_THRESHOLD_NANOS / 2);
+            } else {
+              Thread.yield();
+            }
+            continue;
+          }
+          if (!measuring && intended >= measureFrom) {
+            measuring = true;
+            allocatedBytes = threadAllocatedBytes();
+            warmedUp.countDown();
+          }
+          long started = System.nanoTime();
+          request();
+          long ended = System.nanoTime();
+          if (measuring) {
+            responseTimes.record(ended - intended);
+            serviceTimes.record(ended - started);
+            requests++;
+            this.ended = ended;
+          }
+          intended += intervalNanos;
+        }
+        if (!measuring) {
+          warmedUp.countDown();
+        }
+        long allocatedBytes = threadAllocatedBytes();
+        if (allocatedBytes < 0L || this.allocatedBytes < 0L) {
+          this.allocatedBytes = -1L;
+        } else {
+          this.allocatedBytes = allocatedBytes - this.allocatedBytes;
+        }
+      } finally {
+        finished.countDown();
+      }
+    }
+
+    private void request() {
+      SpanContext parent = tracer.extractContext(Format.Builtin.HTTP_HEADERS, inbound);
+      InstanaSpanBuilder spanBuilder = (InstanaSpanBuilder) tracer.buildSpan(operationNames[0]);
+      spanBuilder.asChildOf(parent);
+      Span root = spanBuilder.doStart(null);
+      Scope scope = tracer.activateSpan(root);
+      try {
+        if (depth == 1) {
+          inject(root);
+        } else {
+          children(1);
+        }
+      } finally {
+        scope.close();
+        root.finish();
+      }
+    }
+
+    private void inject(Span span) {
+      outbound.clear();
+      tracer.inject(span.context(), Format.Builtin.HTTP_HEADERS, new TextMapAdapter(outbound));
+    }
+
+    private void children(int level) {
+      for (int child = 0; child < fanout; child++) {
+        Span span = ((InstanaSpanBuilder) tracer.buildSpan(operationNames[level])).doStart(null);
+        Scope scope = tracer.activateSpan(span);
+        try {
+          if (level + 1 == depth) {
+            inject(span);
+          } else {
+            children(level + 1);
+          }
+        } finally {
+          scope.close();
+          span.finish();
+        }
+      }
+    }
+
+  }
+
+  /**
+   * @return The bytes allocated by the current thread or {@code -1} if the JVM does not support allocation tracking.
+   */
+  private static long threadAllocatedBytes() {
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1L;
+  }
+
+  /**
+   * A histogram of nanosecond values with logarithmic buckets that are linearly divided into 2048 sub-buckets, similar
+   * to an HDR histogram with three significant digits.
+   */
+  static class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 11, SUB_BUCKET_HALF_BITS = SUB_BUCKET_BITS - 1;
+
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_HALF_BITS;
+
+    private static final long SUB_BUCKET_MASK = (1L << SUB_BUCKET_BITS) - 1, MAX_VALUE = (1L << 40) - 1;
+
+    private final long[] counts = new long[(40 - SUB_BUCKET_BITS + 2) << SUB_BUCKET_HALF_BITS];
+
+    private long total, max;
+
+    void record(long value) {
+      value = Math.min(Math.max(0L, value), MAX_VALUE);
+      int bucket = 64 - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK) - SUB_BUCKET_BITS;
+      int subBucket = (int) (value >>> bucket);
+      counts[((bucket + 1) << SUB_BUCKET_HALF_BITS) + subBucket - SUB_BUCKET_HALF_COUNT]++;
+      total++;
+      max = Math.max(max, value);
+    }
+
+    void add(Histogram histogram) {
+      for (int index = 0; index < counts.length; index++) {
+        counts[index] += histogram.counts[index];
+      }
+      total += histogram.total;
+      max = Math.max(max, histogram.max);
+    }
+
+    long percentile(double percentile) {
+      long target = Math.max(1L, (long) Math.ceil(total * percentile / 100d)), count = 0L;
+      for (int index = 0; index < counts.length; index++) {
+        count += counts[index];
+        if (count >= target) {
+          return Math.min(max, highestEquivalentValue(index));
+        }
+      }
+      return max;
+    }
+
+    void print(String name) {
+      System.out.printf(Locale.ROOT, "%s in us: p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f p99.99=%.1f max=%.1f%n", name,
+          percentile(50) / 1e3, percentile(90) / 1e3, percentile(99) / 1e3, percentile(99.9) / 1e3,
+          percentile(99.99) / 1e3, max / 1e3);
+    }
+
+    private static long highestEquivalentValue(int index) {
+      int bucket = (index >> SUB_BUCKET_HALF_BITS) - 1, subBucket = (index & (SUB_BUCKET_HALF_COUNT - 1))
+          + SUB_BUCKET_HALF_COUNT;
+      if (bucket < 0) {
+        subBucket -= SUB_BUCKET_HALF_COUNT;
+        bucket = 0;
+      }
+      return ((long) subBucket << bucket) + (1L << bucket) - 1;
+    }
+  }
+
+  private static class ThreadLocalScopeManager implements ScopeManager {
+
+    private final ThreadLocal<ThreadLocalScope> current = new ThreadLocal<ThreadLocalScope>();
+
+    @Override
+    public Scope activate(Span span) {
+      return new ThreadLocalScope(span);
+    }
+
+    @Override
+    public Span activeSpan() {
+      ThreadLocalScope scope = current.get();
+      return scope == null ? null : scope.span;
+    }
+
+    private class ThreadLocalScope implements Scope {
+
+      private final Span span;
+
+      private final ThreadLocalScope previous;
+
+      ThreadLocalScope(Span span) {
+        this.span = span;
+        previous = current.get();
+        current.set(this);
+      }
+
+      @Override
+      public void close() {
+        current.set(previous);
+      }
+    }
+  }
+}
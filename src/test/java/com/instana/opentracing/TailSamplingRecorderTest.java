@@ -0,0 +1,130 @@
+/*
+ * (c) Copyright IBM Corp. 2022
+ * (c) Copyright Instana Inc.
+ */
+package com.instana.opentracing;
+
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.propagation.Format;
+import io.opentracing.propagation.TextMapAdapter;
+import io.opentracing.tag.Tags;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class TailSamplingRecorderTest {
+
+  private final ColumnarSpanRecorder delegate = new ColumnarSpanRecorder();
+
+  @Test public void testKeepsTraceWithErrorSpan() {
+    TailSamplingRecorder recorder = new TailSamplingRecorder(delegate, TailSamplingRecorder.error());
+    InstanaTracer tracer = InstanaTracer.builder(new InactiveScopeManager()).withRecorder(recorder).build();
+    Span root = tracer.buildSpan("root").start();
+    tracer.buildSpan("ok").asChildOf(root).start().finish();
+    tracer.buildSpan("failed").asChildOf(root).withTag(Tags.ERROR, true).start().finish();
+    assertThat(delegate.size(), is(0));
+    root.finish();
+    assertThat(delegate.size(), is(3));
+    assertThat(recorder.keptTraces(), is(1L));
+
+    tracer.buildSpan("late").asChildOf(root).start().finish();
+    assertThat(delegate.size(), is(4));
+  }
+
+  @Test public void testDropsTraceWithoutMatchingSpan() {
+    TailSamplingRecorder recorder = new TailSamplingRecorder(delegate, TailSamplingRecorder.minDuration(1000L),
+        TailSamplingRecorder.operationName("checkout"));
+    InstanaTracer tracer = InstanaTracer.builder(new InactiveScopeManager()).withRecorder(recorder).build();
+    Span root = tracer.buildSpan("root").withStartTimestamp(1000L).start();
+    tracer.buildSpan("child").asChildOf(root).start().finish();
+    root.finish(1500L);
+    assertThat(delegate.size(), is(0));
+    assertThat(recorder.droppedTraces(), is(1L));
+
+    tracer.buildSpan("late").asChildOf(root).start().finish();
+    assertThat(delegate.size(), is(0));
+
+    tracer.buildSpan("checkout").start().finish();
+    Span slow = tracer.buildSpan("slow").withStartTimestamp(1000L).start();
+    slow.finish(2000L);
+    assertThat(delegate.size(), is(2));
+    assertThat(recorder.keptTraces(), is(2L));
+  }
+
+  @Test public void testCapsSpansPerTrace() {
+    TailSamplingRecorder recorder = new TailSamplingRecorder(delegate, 16, 2, 30, TimeUnit.SECONDS,
+        TailSamplingRecorder.operationName("root"));
+    InstanaTracer tracer = InstanaTracer.builder(new InactiveScopeManager()).withRecorder(recorder).build();
+    Span root = tracer.buildSpan("root").start();
+    for (int index = 0; index < 3; index++) {
+      tracer.buildSpan("child").asChildOf(root).start().finish();
+    }
+    root.finish();
+    assertThat(delegate.size(), is(2));
+    assertThat(delegate.cursor("root").next(), is(true));
+    assertThat(delegate.cursor("child").next(), is(true));
+    assertThat(recorder.droppedSpans(), is(2L));
+  }
+
+  @Test public void testComputesDeferredTagsOfKeptTracesOnly() {
+    TailSamplingRecorder recorder = new TailSamplingRecorder(delegate, TailSamplingRecorder.operationName("kept"));
+    InstanaTracer tracer = InstanaTracer.builder(new InactiveScopeManager()).withRecorder(recorder).build();
+    final int[] invocations = new int[1];
+    TagSupplier<String> supplier = new TagSupplier<String>() {
+      @Override public String get() {
+        invocations[0]++;
+        return "value";
+      }
+    };
+    ((InstanaSpanBuilder) tracer.buildSpan("dropped")).withDeferredTag("foo", supplier).start().finish();
+    assertThat(recorder.droppedTraces(), is(1L));
+    assertThat(invocations[0], is(0));
+    ((InstanaSpanBuilder) tracer.buildSpan("kept")).withDeferredTag("foo", supplier).start().finish();
+    assertThat(invocations[0], is(1));
+    ColumnarSpanRecorder.Cursor cursor = delegate.cursor("kept");
+    assertThat(cursor.next(), is(true));
+    assertThat(cursor.tag("foo"), is("value"));
+  }
+
+  @Test public void testDistinguishesTracesByFullTraceId() {
+    TailSamplingRecorder recorder = new TailSamplingRecorder(delegate, TailSamplingRecorder.error());
+    InstanaTracer tracer = InstanaTracer.builder(new InactiveScopeManager()).withRecorder(recorder).build();
+    Span first = tracer.buildSpan("first").asChildOf(extract(tracer, "0000000000000001000000000000000a")).start();
+    Span second = tracer.buildSpan("second").asChildOf(extract(tracer, "0000000000000002000000000000000a")).start();
+    assertThat(((InstanaSpan) first).traceIdLow(), is(((InstanaSpan) second).traceIdLow()));
+    tracer.buildSpan("ok").asChildOf(first).start().finish();
+    tracer.buildSpan("failed").asChildOf(second).withTag(Tags.ERROR, true).start().finish();
+    second.finish();
+    assertThat(delegate.size(), is(2));
+    first.finish();
+    assertThat(delegate.size(), is(2));
+    assertThat(recorder.keptTraces(), is(1L));
+    assertThat(recorder.droppedTraces(), is(1L));
+  }
+
+  @Test public void testDecidesExpiredTraces() {
+    TailSamplingRecorder recorder = new TailSamplingRecorder(delegate, 1, 16, 0, TimeUnit.SECONDS,
+        TailSamplingRecorder.operationName("child"));
+    InstanaTracer tracer = InstanaTracer.builder(new InactiveScopeManager()).withRecorder(recorder).build();
+    Span root = tracer.buildSpan("root").start();
+    tracer.buildSpan("child").asChildOf(root).start().finish();
+    recorder.expire();
+    assertThat(delegate.size(), is(1));
+    assertThat(recorder.keptTraces(), is(1L));
+    root.finish();
+    assertThat(delegate.size(), is(2));
+  }
+
+  private static SpanContext extract(InstanaTracer tracer, String traceId) {
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("x-instana-t", traceId);
+    headers.put("x-instana-s", "000000000000000b");
+    return tracer.extractContext(Format.Builtin.HTTP_HEADERS, new TextMapAdapter(headers));
+  }
+}